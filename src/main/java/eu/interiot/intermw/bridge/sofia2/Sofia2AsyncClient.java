@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking view of {@link Sofia2Client}.
+ * Requests run on a fixed pool of threads, so no more than maxConcurrentRequests
+ * requests are sent to SOFIA2 at the same time. The rest wait in the pool queue.
+ *
+ * Unsubscribe requests that fail with a 5xx code (SOFIA2 sometimes returns
+ * 500 for valid requests) are sent again up to maxRetries times. The delay starts
+ * at retryBackoff ms and doubles with each retry. Requests do not take a thread while they wait.
+ * Subscribe requests are not retried: SOFIA2 may have created the subscription before failing,
+ * and the subscription created by the retry would leave the first one without an owner.
+ */
+class Sofia2AsyncClient {
+	private final Sofia2Client client;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService retryScheduler;
+	private final int maxRetries;
+	private final long retryBackoff;
+
+	Sofia2AsyncClient(Sofia2Client client, int maxConcurrentRequests, int maxRetries, long retryBackoff) {
+		this.client = client;
+		this.maxRetries = maxRetries;
+		this.retryBackoff = retryBackoff;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(maxConcurrentRequests, runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-client-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-client-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	static Sofia2AsyncClient create(Sofia2Client client, Properties properties) {
+		int maxConcurrentRequests = Integer.valueOf(properties.getProperty("max-concurrent-requests", "20"));
+		int maxRetries = Integer.valueOf(properties.getProperty("request-retries", "3"));
+		long retryBackoff = Long.valueOf(properties.getProperty("request-retry-backoff", "200"));
+		return new Sofia2AsyncClient(client, maxConcurrentRequests, maxRetries, retryBackoff);
+	}
+
+	CompletableFuture<String> query(String ontName, String fieldName, String fieldValue) {
+		return submit(() -> client.query(ontName, fieldName, fieldValue));
+	}
+
+	CompletableFuture<String> list(String ontName) {
+		return submit(() -> client.list(ontName));
+	}
+
+	CompletableFuture<Void> register(String ontName, String fieldName, String thingId) {
+		return submit(() -> {
+			client.register(ontName, fieldName, thingId);
+			return null;
+		});
+	}
+
+	CompletableFuture<Sofia2BatchResult<Void>> registerAll(String ontName, String fieldName, Collection<String> thingIds) {
+		return submit(() -> client.registerAll(ontName, fieldName, thingIds));
+	}
+
+	CompletableFuture<Void> insert(String ontName, String data) {
+		return submit(() -> {
+			client.insert(ontName, data);
+			return null;
+		});
+	}
+
+	CompletableFuture<Void> update(String ontName, String data) {
+		return submit(() -> {
+			client.update(ontName, data);
+			return null;
+		});
+	}
+
+	CompletableFuture<Void> delete(String ontName, String fieldName, String fieldValue) {
+		return submit(() -> {
+			client.delete(ontName, fieldName, fieldValue);
+			return null;
+		});
+	}
+
+	CompletableFuture<Sofia2BatchResult<Void>> deleteAll(String ontName, String fieldName, Collection<String> fieldValues) {
+		return submit(() -> client.deleteAll(ontName, fieldName, fieldValues));
+	}
+
+	CompletableFuture<String> subscribe(String ontName, String fieldName, String fieldValue, String callback) {
+		return submit(() -> client.subscribe(ontName, fieldName, fieldValue, callback));
+	}
+
+	CompletableFuture<String> subscribe(String ontName, String fieldName, Collection<String> fieldValues, String callback) {
+		return submit(() -> client.subscribe(ontName, fieldName, fieldValues, callback));
+	}
+
+	CompletableFuture<String> unsubscribe(String id) {
+		return submitWithRetries(() -> client.unsubscribe(id));
+	}
+
+	void shutdown() {
+		executor.shutdown();
+		retryScheduler.shutdown();
+	}
+
+	private <T> CompletableFuture<T> submitWithRetries(Callable<T> request) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		attempt(request, future, 0);
+		return future;
+	}
+
+	private <T> void attempt(Callable<T> request, CompletableFuture<T> future, int retry) {
+		submit(request).whenComplete((result, error) -> {
+			if (error == null) {
+				future.complete(result);
+			} else if (retry < maxRetries && isTransient(error)) {
+				try {
+					retryScheduler.schedule(() -> attempt(request, future, retry + 1), retryBackoff << retry, TimeUnit.MILLISECONDS);
+				} catch (Exception e) { // Rejected after shutdown
+					future.completeExceptionally(error);
+				}
+			} else {
+				future.completeExceptionally(error);
+			}
+		});
+	}
+
+	private static boolean isTransient(Throwable error) {
+		return error instanceof Sofia2HttpException && ((Sofia2HttpException) error).getStatusCode() >= 500;
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> request) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(request.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (Exception e) { // Rejected after shutdown
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import eu.interiot.intermw.bridge.exceptions.BridgeException;
+
+/**
+ * Results of an operation applied to several items (devices, subscriptions...),
+ * with the failures reported per item.
+ */
+class Sofia2BatchResult<T> {
+	private final Map<String, T> results = new LinkedHashMap<String, T>();
+	private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+	/**
+	 * Waits until all the futures are completed and collects their results.
+	 */
+	static <T> Sofia2BatchResult<T> join(Map<String, CompletableFuture<T>> futures) {
+		Sofia2BatchResult<T> batchResult = new Sofia2BatchResult<T>();
+		for (Map.Entry<String, CompletableFuture<T>> entry : futures.entrySet()) {
+			try {
+				batchResult.success(entry.getKey(), entry.getValue().join());
+			} catch (CompletionException e) {
+				batchResult.failure(entry.getKey(), e.getCause() != null ? e.getCause() : e);
+			} catch (Exception e) {
+				batchResult.failure(entry.getKey(), e);
+			}
+		}
+		return batchResult;
+	}
+
+	void success(String id, T result) {
+		results.put(id, result);
+	}
+
+	void failure(String id, Throwable cause) {
+		failures.put(id, cause);
+	}
+
+	Map<String, T> getResults() {
+		return results;
+	}
+
+	Map<String, Throwable> getFailures() {
+		return failures;
+	}
+
+	boolean hasFailures() {
+		return !failures.isEmpty();
+	}
+
+	/**
+	 * @throws BridgeException listing the failed items, if any
+	 */
+	void checkFailures(String operation) throws BridgeException {
+		if (!hasFailures()) return;
+		StringBuilder description = new StringBuilder();
+		description.append(operation).append(" failed for ").append(failures.size())
+			.append(" of ").append(failures.size() + results.size()).append(" items:");
+		for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+			description.append(" ").append(failure.getKey()).append(" (").append(failure.getValue().getMessage()).append(");");
+		}
+		throw new BridgeException(description.toString());
+	}
+
+}
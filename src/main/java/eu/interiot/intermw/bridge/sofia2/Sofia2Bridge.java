@@ -43,22 +43,49 @@ import eu.interiot.translators.syntax.sofia2.Sofia2Translator;
 
 
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import spark.Spark;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 @eu.interiot.intermw.bridge.annotations.Bridge(platformType = "http://inter-iot.eu/sofia2")
 public class Sofia2Bridge extends AbstractBridge {
     private final Logger logger = LoggerFactory.getLogger(Sofia2Bridge.class);
-	private Map<String, List<String>> subscriptionIds = new HashMap<String,List<String>>();
+	private static final int CONVERSATION_LOCK_STRIPES = 64;
+	private Map<String, List<String>> subscriptionIds = new ConcurrentHashMap<String,List<String>>();
+	private final Lock[] conversationLocks = new Lock[CONVERSATION_LOCK_STRIPES]; // Subscribe, unsubscribe and resubscribe of the same conversation are serialized
+	private Map<String, Map<String, String>> identifierFields = new ConcurrentHashMap<String, Map<String, String>>(); // Ontology -> identifier field of each conversation
     private Sofia2Client client;
+    private Sofia2AsyncClient asyncClient;
+    private Sofia2ObservationPipeline observationPipeline;
+    private Sofia2ObservationBatcher observationBatcher; // Null if batching is disabled
+    private Sofia2DuplicateFilter duplicateFilter; // Null if the filter is disabled
+    private boolean multiplexedSubscriptions; // One subscription per ontology instead of one per device
+    private Sofia2Poller poller; // Observations are polled instead of subscribed. Null unless subscription-mode is poll
+    private Sofia2SubscriptionMultiplexer subscriptionMultiplexer;
+    private Sofia2CallbackListener callbackListener; // Null if callbacks are received by the Spark server of INTER-MW
+    private URL callbackBaseUrl;
+    private Sofia2SubscriptionJournal subscriptionJournal; // Null if the journal is disabled
+    private Sofia2SubscriptionWatchdog subscriptionWatchdog; // Null if the watchdog is disabled
+    private Map<String, List<String>> restoredSubscriptions = new ConcurrentHashMap<String, List<String>>(); // Conversation -> devices, restored from the journal
+    private Map<String, List<String>> staleSubscriptions = new ConcurrentHashMap<String, List<String>>(); // Conversation -> subscription ids restored from the journal with another callback URL
+    private final Sofia2Translator translator = new Sofia2Translator(); // Thread-safe, shared by all the operations of the platform
 
     public Sofia2Bridge(BridgeConfiguration configuration, Platform platform) throws MiddlewareException {
         super(configuration, platform);
@@ -68,9 +95,25 @@ public class Sofia2Bridge extends AbstractBridge {
         if (bridgeCallbackUrl == null) {
             throw new BridgeException("Invalid SOFIA2 bridge configuration.");
         }
+        for (int i = 0; i < conversationLocks.length; i++) {
+        	conversationLocks[i] = new ReentrantLock();
+        }
         
         try{
         	client = new Sofia2Client(properties, platform.getBaseEndpoint().toString());
+        	asyncClient = Sofia2AsyncClient.create(client, properties);
+        	callbackListener = Sofia2CallbackListener.create(properties);
+        	callbackBaseUrl = callbackListener != null ? callbackListener.getBaseUrl(bridgeCallbackUrl) : bridgeCallbackUrl;
+        	duplicateFilter = Sofia2DuplicateFilter.create(properties);
+        	observationBatcher = Sofia2ObservationBatcher.create(properties, this::publishObservationMessage);
+        	observationPipeline = Sofia2ObservationPipeline.create(properties, this::publishObservation, this::deviceKey);
+        	multiplexedSubscriptions = properties.getProperty("subscription-mode", "device").equals("ontology");
+        	if (properties.getProperty("subscription-mode", "device").equals("poll")) {
+        		poller = Sofia2Poller.create(properties, client, this::admitObservation);
+        	}
+        	subscriptionWatchdog = Sofia2SubscriptionWatchdog.create(properties, this::resubscribe);
+        	subscriptionJournal = Sofia2SubscriptionJournal.create(properties);
+        	if (subscriptionJournal != null) restoreSubscriptions();
         }catch (Exception e) {
         	throw new BridgeException(e);
         }
@@ -89,6 +132,7 @@ public class Sofia2Bridge extends AbstractBridge {
         try {
 			client.join();
 			logger.debug("Platform {} has been registered.", platformId);
+			removeStaleSubscriptions();
 		} catch (Exception e) {
 			logger.error("Register Platform  " + e);
 			e.printStackTrace();
@@ -112,9 +156,22 @@ public class Sofia2Bridge extends AbstractBridge {
 		String platformId = platform.getPlatformId();
         logger.debug("Unregistering platform {}...", platformId);
         try {
+			// Stop receiving observations. Pending batches are published before the session ends
+			for (String conversationId : subscriptionIds.keySet()) {
+				getCallbackDispatcher().unregister(conversationId);
+			}
+			if (multiplexedSubscriptions) getSubscriptionMultiplexer().clear();
+			if (poller != null) poller.clear();
+			observationPipeline.shutdown();
+			if (observationBatcher != null) observationBatcher.shutdown();
 			client.leave();
 			logger.debug("Platform {} has been unregistered.", platformId);
 			subscriptionIds.clear();
+			identifierFields.clear();
+			restoredSubscriptions.clear();
+			staleSubscriptions.clear();
+			if (subscriptionWatchdog != null) subscriptionWatchdog.clear();
+			updateJournal(journal -> journal.clear());
 		} catch (Exception e) {
 			logger.error("Unregister Platform  " + e);
 			e.printStackTrace();
@@ -123,10 +180,35 @@ public class Sofia2Bridge extends AbstractBridge {
 			responseMessage.getMetadata().asErrorMessageMetadata().setExceptionStackTrace(e);
 			responseMessage.getMetadata().asErrorMessageMetadata().setErrorDescription(e.toString());
 			responseMessage.getMetadata().asErrorMessageMetadata().setOriginalMessage(message.toString());
+		} finally {
+			release();
 		}
         return responseMessage;
 	}
 	
+	/**
+	 * Stops the threads and closes the connections and files of the bridge, also if unregistering failed.
+	 * The bridge cannot be used afterwards.
+	 */
+	private void release() {
+		observationPipeline.shutdown();
+		if (observationBatcher != null) observationBatcher.shutdown();
+		if (poller != null) poller.shutdown();
+		if (subscriptionWatchdog != null) subscriptionWatchdog.shutdown();
+		asyncClient.shutdown();
+		closeQuietly(client);
+		if (subscriptionJournal != null) closeQuietly(subscriptionJournal);
+		if (callbackListener != null) closeQuietly(callbackListener);
+	}
+	
+	private void closeQuietly(Closeable resource) {
+		try {
+			resource.close();
+		} catch (IOException e) {
+			logger.warn("Error closing " + resource.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+	
 	@Override
 	public Message updatePlatform(Message message) throws Exception {
 		// TODO: update base endpoint, user, password
@@ -143,74 +225,76 @@ public class Sofia2Bridge extends AbstractBridge {
 		String conversationId = message.getMetadata().getConversationId().orElse(null); 
 		List<String> deviceIds = Sofia2Utils.extractDeviceIds(message);
 		
-		String endpoint = conversationId; // UNIQUE ENDPOINT
-		URL callbackUrl = new URL(bridgeCallbackUrl, endpoint);
+		URL callbackUrl = new URL(callbackBaseUrl, Sofia2CallbackDispatcher.CALLBACK_PATH + conversationId); // UNIQUE ENDPOINT
 		List<String> subIds = new ArrayList<String>();
 		
 		if (deviceIds.isEmpty()) {	
           throw new PayloadException("No entities of type Device found in the Payload.");
 		}
+		Lock lock = conversationLock(conversationId);
+		lock.lock();
 		try{
 			logger.debug("Subscribing to things using conversationId {}...", conversationId);
+			List<String> restoredDevices = restoredSubscriptions.remove(conversationId);
+			if (restoredDevices != null && new HashSet<String>(restoredDevices).equals(new HashSet<String>(deviceIds))) {
+				// Same subscription as before the restart. Keep the SOFIA2 subscriptions restored from the journal
+				logger.debug("Subscriptions of conversation {} restored from the journal.", conversationId);
+				return responseMessage;
+			}
+			if (restoredDevices != null) {
+				// The devices changed while the bridge was stopped. The restored subscriptions are replaced
+				List<String> restoredIds = subscriptionIds.remove(conversationId);
+				if (subscriptionWatchdog != null) subscriptionWatchdog.unwatch(conversationId);
+				updateJournal(journal -> journal.unsubscribed(conversationId));
+				if (restoredIds != null) removeSubscriptions(conversationId, restoredIds);
+			}
+			if (multiplexedSubscriptions || poller != null) {
+				// One subscription (or poll) per ontology, shared by all conversations
+				List<String[]> thingIds = new ArrayList<String[]>();
+				Map<String, String> fields = new HashMap<String, String>();
+				for (String deviceId : deviceIds) {
+					String thingId[] = Sofia2Utils.filterThingID(deviceId);
+					if (thingId.length > 2) {
+						thingIds.add(thingId);
+						fields.put(thingId[0], thingId[1]);
+					}
+				}
+				identifierFields.put(conversationId, fields);
+				if (poller != null) poller.subscribe(conversationId, thingIds);
+				else getSubscriptionMultiplexer().subscribe(conversationId, thingIds);
+				return responseMessage;
+			}
+			
+			Map<String, CompletableFuture<String>> subscriptions = new LinkedHashMap<String, CompletableFuture<String>>();
+			Map<String, String> fields = new HashMap<String, String>();
 			for (String deviceId : deviceIds) {
 				String thingId[] = Sofia2Utils.filterThingID(deviceId);
 				logger.debug("Sending Subscribe request to the platform for device {}...", deviceId);
-				System.out.println("Sending subscribe request to the platform for device {}... " + thingId[0] + "." + thingId[1] + ":" + thingId[2]);
-				String subId = "";
             	if(thingId.length > 1){
-    				subId = client.subscribe(thingId[0], thingId[1], thingId[2], callbackUrl.toString()); // Subscription to a thing in SOFIA2
+            		fields.put(thingId[0], thingId[1]);
+            		subscriptions.put(deviceId, asyncClient.subscribe(thingId[0], thingId[1], thingId[2], callbackUrl.toString())); // Subscription to a thing in SOFIA2
     			}
 //				else{
 //            		subId = client.subscribe(thingId[thingId.length - 1], callbackUrl.toString()); // Subscription to an ontology?
 //				}
-            	if(subId != null) subIds.add(subId);
         	}
-			
-			
-			Sofia2Translator translator = new Sofia2Translator();
+			Sofia2BatchResult<String> result = Sofia2BatchResult.join(subscriptions);
+			for (Map.Entry<String, String> subscription : result.getResults().entrySet()) {
+				String subId = subscription.getValue();
+				if (subId == null) continue;
+				subIds.add(subId);
+				if (subscriptionWatchdog != null) subscriptionWatchdog.watch(conversationId, Sofia2Utils.filterThingID(subscription.getKey()), subId);
+			}
 			
 			subscriptionIds.put(conversationId, subIds); // SUBSCRIPTION ID IS NEEDED FOR UNSUBSCRIBE METHOD. UNSUBSCRIBE MESSAGE CONTAINS CONVERSATIONID
+			updateJournal(journal -> journal.subscribed(conversationId, deviceIds, subIds, callbackUrl.toString()));
 			
-			Spark.post(endpoint, (request, response) -> {
-	            logger.debug("Received observation from the platform.");
-	            PlatformMessageMetadata metadata = new MessageMetadata().asPlatformMessageMetadata();
-	            metadata.initializeMetadata();
-	            metadata.addMessageType(URIManagerMessageMetadata.MessageTypesEnum.OBSERVATION);
-	            metadata.setSenderPlatformId(new EntityID(platform.getPlatformId()));
-	            metadata.setConversationId(conversationId);        
-	            
-	            JsonParser parser = new JsonParser();
-	    		JsonObject ssapObject = parser.parse(request.body().toString()).getAsJsonObject();
-	    		
-	    		System.out.println(request.body().toString());
-	    		String observation;
-	    		if (ssapObject.has("version") && ssapObject.get("version").getAsString().equals("LEGACY")){
-	    			JsonObject body = ssapObject.get("body").getAsJsonObject();
-//	    			System.out.println("Received data: " + body.toString());
-		    		observation = body.get("data").getAsString();
-		    		System.out.println("Received data: " + observation);
-	    		}else{
-	    			JsonObject body = parser.parse(ssapObject.get("body").getAsString()).getAsJsonObject();
-		    		observation = body.get("data").getAsString();
-		    		System.out.println("Received data: " + observation);
-//		    		JsonArray array = parser.parse("[" + observation + "]").getAsJsonArray(); // In case SOFIA2 returns more than one value
-//		    		observation = array.get(0).getAsJsonObject().toString(); // Get only the new value
-	    		}
-	    			    		
-	            Model translatedModel = translator.toJenaModel(observation);
-	    		// Create a new message payload for the response message
-	    		MessagePayload responsePayload = new MessagePayload(translatedModel);
-	            	            
-	            Message observationMessage = new Message();
-	            observationMessage.setMetadata(metadata);
-	            observationMessage.setPayload(responsePayload); 
-	
-	            publisher.publish(observationMessage);
-	            logger.debug("Observation message has been published upstream.");
-	            System.out.println(observationMessage.serializeToJSONLD());
-	            response.status(200);
-	            return "";
-	        });
+			identifierFields.put(conversationId, fields);
+			// Observations of this conversation are received in the shared callback endpoint
+			// They are queued and the callback is answered at once. The pipeline workers translate and publish them
+			// The handler is also needed if only some subscriptions succeeded
+			getCallbackDispatcher().register(conversationId, observation -> admitObservation(conversationId, observation));
+			result.checkFailures("Subscribe");
 			
 		}catch (Exception e){ 
 			logger.error("Error subscribing: " + e.getMessage());
@@ -219,28 +303,238 @@ public class Sofia2Bridge extends AbstractBridge {
 			responseMessage.getMetadata().asErrorMessageMetadata().setExceptionStackTrace(e);
 			responseMessage.getMetadata().asErrorMessageMetadata().setErrorDescription(e.toString());
 			responseMessage.getMetadata().asErrorMessageMetadata().setOriginalMessage(message.toString());
+		}finally{
+			lock.unlock();
 		}
 		return responseMessage;
 	}
 	
 
+	private Sofia2CallbackDispatcher.CallbackResult admitObservation(String conversationId, Sofia2Instance observation) {
+		switch (observationPipeline.offer(conversationId, observation)) {
+		case ACCEPTED:
+			return Sofia2CallbackDispatcher.CallbackResult.OK;
+		case THROTTLED:
+			return new Sofia2CallbackDispatcher.CallbackResult(429, observationPipeline.getRetryAfter()); // Too Many Requests
+		default:
+			return new Sofia2CallbackDispatcher.CallbackResult(503, observationPipeline.getRetryAfter()); // Queue full
+		}
+	}
+	
+	// Observations of the same device are processed in order, and they can be conflated
+	private String deviceKey(String conversationId, Sofia2Instance observation) {
+		Map<String, String> fields = identifierFields.get(conversationId);
+		return fields != null ? observation.getDeviceKey(fields) : null;
+	}
+	
+	private void publishObservation(String conversationId, Sofia2Instance observation) throws Exception {
+		logger.debug("Received observation from the platform.");
+		if (logger.isDebugEnabled()) logger.debug("Received data: {}", observation.getData());
+		if (subscriptionWatchdog != null) subscriptionWatchdog.indication(conversationId, deviceKey(conversationId, observation));
+		if (duplicateFilter != null && duplicateFilter.isDuplicate(conversationId, observation.getInstanceKey())) {
+			logger.debug("Duplicate observation discarded.");
+			return;
+		}
+		
+		Model translatedModel = translator.toJenaModel(observation.parser());
+		if (observationBatcher != null) {
+			observationBatcher.add(conversationId, translatedModel); // Published later, together with other observations of the conversation
+		} else {
+			publishObservationMessage(conversationId, translatedModel);
+		}
+	}
+	
+	private void publishObservationMessage(String conversationId, Model translatedModel) throws Exception {
+		PlatformMessageMetadata metadata = new MessageMetadata().asPlatformMessageMetadata();
+		metadata.initializeMetadata();
+		metadata.addMessageType(URIManagerMessageMetadata.MessageTypesEnum.OBSERVATION);
+		metadata.setSenderPlatformId(new EntityID(platform.getPlatformId()));
+		metadata.setConversationId(conversationId);        
+		
+		// Create a new message payload for the response message
+		MessagePayload responsePayload = new MessagePayload(translatedModel);
+		
+		Message observationMessage = new Message();
+		observationMessage.setMetadata(metadata);
+		observationMessage.setPayload(responsePayload); 
+		
+		publisher.publish(observationMessage);
+		logger.debug("Observation message has been published upstream.");
+		if (logger.isTraceEnabled()) logger.trace(observationMessage.serializeToJSONLD());
+	}
+	
+	/**
+	 * Restores the callback handlers and subscription ids saved in the journal before the bridge was restarted.
+	 * SOFIA2 keeps sending indications to the same callback URLs, so the subscriptions are not created again.
+	 * If the middleware sends the same subscribe message again, the restored subscriptions are reused.
+	 * Subscriptions made with another callback URL (the listener port or bridge.callback.url changed) are
+	 * not restored: they are removed when the platform is registered, and created again by the next subscribe.
+	 */
+	private void restoreSubscriptions() throws MalformedURLException {
+		for (Sofia2SubscriptionJournal.Entry entry : subscriptionJournal.getEntries()) {
+			String conversationId = entry.conversationId;
+			String callbackUrl = new URL(callbackBaseUrl, Sofia2CallbackDispatcher.CALLBACK_PATH + conversationId).toString();
+			if (!callbackUrl.equals(entry.callback)) {
+				logger.warn("Subscriptions of conversation {} were made with callback {} and will be removed.", conversationId, entry.callback);
+				staleSubscriptions.put(conversationId, new ArrayList<String>(entry.subscriptionIds));
+				continue;
+			}
+			Map<String, String> fields = new HashMap<String, String>();
+			for (String deviceId : entry.deviceIds) {
+				String thingId[] = Sofia2Utils.filterThingID(deviceId);
+				if (thingId.length > 1) fields.put(thingId[0], thingId[1]);
+			}
+			subscriptionIds.put(conversationId, new ArrayList<String>(entry.subscriptionIds));
+			identifierFields.put(conversationId, fields);
+			restoredSubscriptions.put(conversationId, entry.deviceIds);
+			if (subscriptionWatchdog != null && entry.deviceIds.size() == entry.subscriptionIds.size()) {
+				// Ids are saved in the order of the devices. If some subscriptions failed, they cannot be matched
+				for (int i = 0; i < entry.deviceIds.size(); i++) {
+					subscriptionWatchdog.watch(conversationId, Sofia2Utils.filterThingID(entry.deviceIds.get(i)), entry.subscriptionIds.get(i));
+				}
+			}
+			getCallbackDispatcher().register(conversationId, observation -> admitObservation(conversationId, observation));
+		}
+		logger.info("{} subscriptions restored from the subscription journal.", restoredSubscriptions.size());
+	}
+	
+	/**
+	 * Removes the restored subscriptions whose callback URL is no longer served. Needs a session.
+	 */
+	private void removeStaleSubscriptions() {
+		for (Iterator<Map.Entry<String, List<String>>> it = staleSubscriptions.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, List<String>> stale = it.next();
+			String conversationId = stale.getKey();
+			it.remove();
+			removeSubscriptions(conversationId, stale.getValue());
+			Lock lock = conversationLock(conversationId);
+			lock.lock();
+			try {
+				// Unless the conversation has been subscribed again meanwhile
+				if (!subscriptionIds.containsKey(conversationId)) updateJournal(journal -> journal.unsubscribed(conversationId));
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	// Removes SOFIA2 subscriptions that the bridge no longer uses. Failures are only logged
+	private void removeSubscriptions(String conversationId, List<String> subIds) {
+		Map<String, CompletableFuture<String>> unsubscriptions = new LinkedHashMap<String, CompletableFuture<String>>();
+		for (String subId : subIds) {
+			unsubscriptions.put(subId, asyncClient.unsubscribe(subId));
+		}
+		Sofia2BatchResult<String> result = Sofia2BatchResult.join(unsubscriptions);
+		for (Map.Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+			logger.warn("Subscription {} of conversation {} could not be removed: {}", failure.getKey(), conversationId, failure.getValue().getMessage());
+		}
+	}
+	
+	/**
+	 * Replaces a subscription that SOFIA2 no longer serves (called by the watchdog).
+	 * The new subscription is created before the stale one is removed, so no observation is lost.
+	 * Observations received twice are discarded by the duplicate filter.
+	 */
+	private String resubscribe(String conversationId, String[] thingId, String staleSubscriptionId) throws Exception {
+		URL callbackUrl = new URL(callbackBaseUrl, Sofia2CallbackDispatcher.CALLBACK_PATH + conversationId);
+		String subId = asyncClient.subscribe(thingId[0], thingId[1], thingId[2], callbackUrl.toString()).get();
+		List<String> subIds;
+		Lock lock = conversationLock(conversationId);
+		lock.lock();
+		try {
+			List<String> current = subscriptionIds.get(conversationId);
+			if (current != null) {
+				int index = current.indexOf(staleSubscriptionId);
+				if (index >= 0) current.set(index, subId); else current.add(subId);
+			}
+			subIds = current != null ? new ArrayList<String>(current) : null;
+		} finally {
+			lock.unlock();
+		}
+		if (subIds == null) { // Unsubscribed meanwhile
+			asyncClient.unsubscribe(subId);
+			return null;
+		}
+		updateJournal(journal -> journal.updateSubscriptionIds(conversationId, subIds));
+		asyncClient.unsubscribe(staleSubscriptionId).whenComplete((result, error) -> {
+			if (error != null) logger.debug("Stale subscription {} could not be removed: {}", staleSubscriptionId, error.getMessage());
+		});
+		return subId;
+	}
+	
+	private Lock conversationLock(String conversationId) {
+		int hash = conversationId != null ? conversationId.hashCode() : 0;
+		return conversationLocks[(hash & 0x7fffffff) % conversationLocks.length];
+	}
+	
+	private interface JournalUpdate {
+		void apply(Sofia2SubscriptionJournal journal) throws IOException;
+	}
+	
+	// The subscription has already been made in SOFIA2, so a journal error must not make the message fail
+	private void updateJournal(JournalUpdate update) {
+		if (subscriptionJournal == null) return;
+		try {
+			update.apply(subscriptionJournal);
+		} catch (IOException e) {
+			logger.warn("Error updating the subscription journal: " + e.getMessage());
+		}
+	}
+	
+	private Sofia2CallbackDispatcher getCallbackDispatcher() {
+		return callbackListener != null ? callbackListener.getDispatcher() : Sofia2CallbackDispatcher.spark();
+	}
+	
+	// Created on first use, as it registers the callback route
+	private synchronized Sofia2SubscriptionMultiplexer getSubscriptionMultiplexer() {
+		if (subscriptionMultiplexer == null) {
+			String keyPrefix = "ont-" + Integer.toHexString(platform.getPlatformId().hashCode()) + "-";
+			subscriptionMultiplexer = new Sofia2SubscriptionMultiplexer(asyncClient, getCallbackDispatcher(), callbackBaseUrl,
+					keyPrefix, this::admitObservation);
+		}
+		return subscriptionMultiplexer;
+	}
+	
+	Sofia2ObservationPipeline getObservationPipeline() {
+		return observationPipeline;
+	}
+	
 	@Override
 	public Message unsubscribe(Message message) throws Exception {
 		Message responseMessage = createResponseMessage(message);
 	    String conversationId = Sofia2Utils.extractConversationId(message);
 		
+		Lock lock = conversationLock(conversationId);
+		lock.lock();
 		try{
 			logger.info("Unsubscribing from things in conversation {}...", conversationId);
+			if (multiplexedSubscriptions || poller != null) {
+				if (poller != null) poller.unsubscribe(conversationId);
+				else getSubscriptionMultiplexer().unsubscribe(conversationId);
+				identifierFields.remove(conversationId);
+				return responseMessage;
+			}
 			List<String> subId = subscriptionIds.get(conversationId); // RETRIEVE SUBSCRIPTION IDs
+			if (subId == null) throw new BridgeException("Unknown conversation " + conversationId);
+			// The server sometimes returns a 500 code. These requests are retried by the async client
+			Map<String, CompletableFuture<String>> unsubscriptions = new LinkedHashMap<String, CompletableFuture<String>>();
 			for (String subscriptionId : subId){
-				try{
-					client.unsubscribe(subscriptionId);
-				}catch (Exception e){ // FIXME: The server sometimes returns a 500 code. It's probably a bug
-					logger.error("Error unsubscribing: " + e.getMessage());
-					e.printStackTrace();
-				}
+				unsubscriptions.put(subscriptionId, asyncClient.unsubscribe(subscriptionId));
+			}
+			Sofia2BatchResult<String> result = Sofia2BatchResult.join(unsubscriptions);
+			getCallbackDispatcher().unregister(conversationId);
+			identifierFields.remove(conversationId);
+			restoredSubscriptions.remove(conversationId);
+			if (subscriptionWatchdog != null) subscriptionWatchdog.unwatch(conversationId);
+			if (result.hasFailures()) {
+				// Keep the failed subscription ids, so that they can be removed with a new unsubscribe message
+				List<String> failedIds = new ArrayList<String>(result.getFailures().keySet());
+				subscriptionIds.put(conversationId, failedIds);
+				updateJournal(journal -> journal.updateSubscriptionIds(conversationId, failedIds));
+				result.checkFailures("Unsubscribe");
 			}
 			subscriptionIds.remove(conversationId);
+			updateJournal(journal -> journal.unsubscribed(conversationId));
 			
 		} catch (Exception e){ 
 			logger.error("Error unsubscribing: " + e.getMessage());
@@ -250,6 +544,8 @@ public class Sofia2Bridge extends AbstractBridge {
 			responseMessage.getMetadata().asErrorMessageMetadata().setExceptionStackTrace(e);
 			responseMessage.getMetadata().asErrorMessageMetadata().setErrorDescription(e.toString());
 			responseMessage.getMetadata().asErrorMessageMetadata().setOriginalMessage(message.toString());
+		} finally {
+			lock.unlock();
 		}
 		
 		return responseMessage;
@@ -263,7 +559,6 @@ public class Sofia2Bridge extends AbstractBridge {
 	        if (devices.isEmpty()) {
 	        	// Return status or last measurement of each device
 	        	String responseBody = client.list();
-	        	Sofia2Translator translator = new Sofia2Translator();
 				// Create the model from the response JSON
 				Model translatedModel = translator.toJenaModel(responseBody);
 				// Create a new message payload for the response message
@@ -271,17 +566,22 @@ public class Sofia2Bridge extends AbstractBridge {
 				// Attach the payload to the message
 				responseMessage.setPayload(responsePayload);
 	        }else{
+	        	Map<String, CompletableFuture<String>> queries = new LinkedHashMap<String, CompletableFuture<String>>();
 	        	for (IoTDevice iotDevice : devices) {
 	        		String thingId[] = Sofia2Utils.filterThingID(iotDevice.getDeviceId());
-	        		String responseBody = client.query(thingId[0], thingId[1], thingId[2]);
-	        		Sofia2Translator translator = new Sofia2Translator();
+	        		queries.put(iotDevice.getDeviceId(), asyncClient.query(thingId[0], thingId[1], thingId[2]));
+	        	}
+	        	Sofia2BatchResult<String> result = Sofia2BatchResult.join(queries);
+	        	result.checkFailures("Query");
+	        	Model translatedModel = ModelFactory.createDefaultModel();
+	        	for (String responseBody : result.getResults().values()) {
 	        		// Create the model from the response JSON
-	        		Model translatedModel = translator.toJenaModel(responseBody);
-	        		// Create a new message payload for the response message
-	        		MessagePayload responsePayload = new MessagePayload(translatedModel);
-	        		// Attach the payload to the message
-	        		responseMessage.setPayload(responsePayload);
+	        		translatedModel.add(translator.toJenaModel(responseBody));
 	        	}
+	        	// Create a new message payload for the response message
+	        	MessagePayload responsePayload = new MessagePayload(translatedModel);
+	        	// Attach the payload to the message
+	        	responseMessage.setPayload(responsePayload);
 	        }
 			// Set the OK status
 			responseMessage.getMetadata().setStatus("OK");
@@ -311,37 +611,32 @@ public class Sofia2Bridge extends AbstractBridge {
 		try{
 			// Discover all the registered devices
 			logger.debug("ListDevices started...");
-			String responseBody = client.list();
-			Sofia2Translator translator = new Sofia2Translator();
-			// Set the OK status
-			responseMessage.getMetadata().setStatus("OK");
 			
 			/*
 			 * Add devices to the registry
+			 * Instances are read page by page and each one is published as soon as it is received
 			 * */
 			String conversationId = message.getMetadata().getConversationId().orElse(null); 
-			if(responseBody!=null){
-				JsonParser parser = new JsonParser();
-				JsonArray devices = parser.parse(responseBody).getAsJsonArray();
-				for(int i = 0; i < devices.size(); i++){
-					Message addDeviceMessage = new Message();
-					PlatformMessageMetadata metadata = new MessageMetadata().asPlatformMessageMetadata();
-		            metadata.initializeMetadata();
-		            metadata.addMessageType(URIManagerMessageMetadata.MessageTypesEnum.DEVICE_ADD_OR_UPDATE);
-		            metadata.setSenderPlatformId(new EntityID(platform.getPlatformId()));
-		            metadata.setConversationId(conversationId); 
-		            // Create a new message payload with the information about the device
-		            Model deviceModel = translator.toJenaModel(devices.get(i).getAsJsonObject().toString());
-		    		MessagePayload devicePayload = new MessagePayload(deviceModel);
-		            
-		            addDeviceMessage.setMetadata(metadata);
-		            addDeviceMessage.setPayload(devicePayload);
-		            
-		            publisher.publish(addDeviceMessage);
-		            logger.debug("Device_Add_Or_Update message has been published upstream.");
-				}
-				logger.debug(devices.size() + " new devices have been added to the registry");
-			}else logger.debug("0 new devices have been added to the registry");
+			int devices = client.list(instance -> {
+				Message addDeviceMessage = new Message();
+				PlatformMessageMetadata metadata = new MessageMetadata().asPlatformMessageMetadata();
+	            metadata.initializeMetadata();
+	            metadata.addMessageType(URIManagerMessageMetadata.MessageTypesEnum.DEVICE_ADD_OR_UPDATE);
+	            metadata.setSenderPlatformId(new EntityID(platform.getPlatformId()));
+	            metadata.setConversationId(conversationId); 
+	            // Create a new message payload with the information about the device
+	            Model deviceModel = translator.toJenaModel(instance.parser());
+	    		MessagePayload devicePayload = new MessagePayload(deviceModel);
+	            
+	            addDeviceMessage.setMetadata(metadata);
+	            addDeviceMessage.setPayload(devicePayload);
+	            
+	            publisher.publish(addDeviceMessage);
+	            logger.debug("Device_Add_Or_Update message has been published upstream.");
+			});
+			logger.debug(devices + " new devices have been added to the registry");
+			// Set the OK status
+			responseMessage.getMetadata().setStatus("OK");
 		}
 		catch (Exception e) {
 			logger.error("Error in query: " + e.getMessage());
@@ -364,13 +659,18 @@ public class Sofia2Bridge extends AbstractBridge {
 		Message responseMessage = createResponseMessage(message);
 		try{
 			List<IoTDevice> devices = Sofia2Utils.extractDevices(message);
-			for (IoTDevice iotDevice : devices) {
-				String thingId[] = Sofia2Utils.filterThingID(iotDevice.getDeviceId());
-	            logger.debug("Sending create-device (start-to-manage) request to the platform for device {}...", iotDevice.getDeviceId());
-	            System.out.println("Sending create-device (start-to-manage) request to the platform for device {}... " + thingId[0] + "." + thingId[1] + ":" + thingId[2]);
-	            client.register(thingId[0], thingId[1], thingId[2]); // TODO: Include name as an attribute of the virtual device
-	    		logger.debug("Success");  
-	        }
+			Sofia2BatchResult<Void> result = new Sofia2BatchResult<Void>();
+			// One batch per ontology: identifier value -> device id
+			Map<String, Map<String, String>> groups = Sofia2Utils.groupThingIds(devices, result);
+			Map<String, CompletableFuture<Sofia2BatchResult<Void>>> registrations = new LinkedHashMap<String, CompletableFuture<Sofia2BatchResult<Void>>>();
+			for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+				String thingId[] = Sofia2Utils.filterThingID(group.getValue().values().iterator().next());
+				logger.debug("Sending create-device (start-to-manage) request to the platform for {} devices of {}...", group.getValue().size(), thingId[0]);
+				registrations.put(group.getKey(), asyncClient.registerAll(thingId[0], thingId[1], group.getValue().keySet())); // TODO: Include name as an attribute of the virtual device
+			}
+			Sofia2Utils.mergeGroupResults(groups, Sofia2BatchResult.join(registrations), result);
+			logger.debug("{} devices have been registered.", result.getResults().size());
+			result.checkFailures("Device registration");
     	}catch(Exception e){
     		logger.error("Error registering devices: " + e.getMessage());
     		e.printStackTrace();
@@ -397,11 +697,17 @@ public class Sofia2Bridge extends AbstractBridge {
 		try {
 			logger.debug("Removing devices...");
 			List<IoTDevice> devices = Sofia2Utils.extractDevices(message);
-			for (IoTDevice iotDevice : devices) {
-				String transformedId[] = Sofia2Utils.filterThingID(iotDevice.getDeviceId());
-				client.delete(transformedId[0], transformedId[1], transformedId[2]);
-				logger.debug("Device {} has been removed.", iotDevice.getDeviceId());
+			Sofia2BatchResult<Void> result = new Sofia2BatchResult<Void>();
+			// One batch per ontology: identifier value -> device id
+			Map<String, Map<String, String>> groups = Sofia2Utils.groupThingIds(devices, result);
+			Map<String, CompletableFuture<Sofia2BatchResult<Void>>> deletions = new LinkedHashMap<String, CompletableFuture<Sofia2BatchResult<Void>>>();
+			for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+				String transformedId[] = Sofia2Utils.filterThingID(group.getValue().values().iterator().next());
+				deletions.put(group.getKey(), asyncClient.deleteAll(transformedId[0], transformedId[1], group.getValue().keySet()));
 			}
+			Sofia2Utils.mergeGroupResults(groups, Sofia2BatchResult.join(deletions), result);
+			logger.debug("{} devices have been removed.", result.getResults().size());
+			result.checkFailures("Device removal");
 			responseMessage.getMetadata().setStatus("OK");
 		} 
 		catch (Exception e) {
@@ -421,7 +727,6 @@ public class Sofia2Bridge extends AbstractBridge {
 		Message responseMessage = createResponseMessage(message);
 		try{
 			logger.debug("Sending observation to the platform {}...", platform.getPlatformId());
-			Sofia2Translator translator = new Sofia2Translator();
 			String body = translator.toFormatX(message.getPayload().getJenaModel());
 			// Get ontology and data for update
 			String ontName = Sofia2Utils.getOntName(body);
@@ -445,7 +750,6 @@ public class Sofia2Bridge extends AbstractBridge {
 		Message responseMessage = createResponseMessage(message);
 		try{
 			logger.debug("Sending actuation to the platform {}...", platform.getPlatformId());
-			Sofia2Translator translator = new Sofia2Translator();
 			String body = translator.toFormatX(message.getPayload().getJenaModel());
 			// Get ontology and data for update
 			String ontName = Sofia2Utils.getOntName(body);
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Route;
+import spark.Spark;
+
+/**
+ * Routes SOFIA2 subscription callbacks to the handler of their conversation.
+ *
+ * All subscriptions share one endpoint, {@value #CALLBACK_PATH}{conversationId}.
+ * The handler is found with a map lookup, so the cost of a callback does not depend
+ * on the number of active subscriptions.
+ * The instance data is parsed from the request stream (see {@link Sofia2SsapReader#observation(InputStream)})
+ * and handlers receive it with its routing values already read (see {@link Sofia2Instance}).
+ * The instance is not parsed into a tree, and it is not parsed again by the translator.
+ */
+class Sofia2CallbackDispatcher {
+	static final String CALLBACK_PATH = "sofia2/";
+	static final String ROUTE = "/" + CALLBACK_PATH + ":conversationId";
+
+	private static Sofia2CallbackDispatcher sparkDispatcher;
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2CallbackDispatcher.class);
+	private final Map<String, CallbackHandler> handlers = new ConcurrentHashMap<String, CallbackHandler>();
+
+	/**
+	 * Processes the instance data received in the callbacks of one conversation.
+	 */
+	interface CallbackHandler {
+		CallbackResult handle(Sofia2Instance observation) throws Exception;
+	}
+
+	/**
+	 * HTTP status code for the response to SOFIA2 and, when the bridge is overloaded,
+	 * the number of seconds SOFIA2 should wait before sending the callback again.
+	 */
+	static class CallbackResult {
+		static final CallbackResult OK = new CallbackResult(200, 0);
+		static final CallbackResult BAD_REQUEST = new CallbackResult(400, 0);
+		static final CallbackResult NOT_FOUND = new CallbackResult(404, 0);
+
+		final int status;
+		final int retryAfter;
+
+		CallbackResult(int status, int retryAfter) {
+			this.status = status;
+			this.retryAfter = retryAfter;
+		}
+	}
+
+	/**
+	 * Returns the dispatcher bound to the Spark server of INTER-MW.
+	 * The route is registered the first time this method is called.
+	 */
+	static synchronized Sofia2CallbackDispatcher spark() {
+		if (sparkDispatcher == null) {
+			Sofia2CallbackDispatcher dispatcher = new Sofia2CallbackDispatcher();
+			Spark.post(ROUTE, dispatcher.route());
+			sparkDispatcher = dispatcher;
+		}
+		return sparkDispatcher;
+	}
+
+	Route route() {
+		return (request, response) -> {
+			CallbackResult result;
+			try (InputStream body = request.raw().getInputStream()) {
+				result = dispatch(request.params(":conversationId"), body);
+			}
+			if (result.retryAfter > 0) response.header("Retry-After", Integer.toString(result.retryAfter));
+			response.status(result.status);
+			return "";
+		};
+	}
+
+	void register(String conversationId, CallbackHandler handler) {
+		handlers.put(conversationId, handler);
+	}
+
+	void unregister(String conversationId) {
+		handlers.remove(conversationId);
+	}
+
+	int size() {
+		return handlers.size();
+	}
+
+	/**
+	 * Dispatches a callback received by {@link Sofia2CallbackListener}.
+	 * The body is decoded while it is parsed, without copying it.
+	 *
+	 * @param indication body of the callback, a UTF-8 encoded SSAP indication message
+	 */
+	CallbackResult dispatch(String conversationId, ByteBuffer indication) throws Exception {
+		return dispatch(conversationId, new ByteBufferInputStream(indication));
+	}
+
+	/**
+	 * @param indication body of the callback, a UTF-8 encoded SSAP indication message
+	 */
+	CallbackResult dispatch(String conversationId, InputStream indication) throws Exception {
+		CallbackHandler handler = handlers.get(conversationId);
+		if (handler == null) {
+			logger.warn("Received callback for unknown conversation {}.", conversationId);
+			return CallbackResult.NOT_FOUND;
+		}
+		Sofia2Instance observation;
+		try {
+			observation = Sofia2SsapReader.observation(indication);
+		} catch (IOException e) {
+			logger.warn("Invalid callback for conversation " + conversationId + ": " + e.getMessage());
+			return CallbackResult.BAD_REQUEST;
+		}
+		if (observation == null) {
+			logger.warn("Received callback without data for conversation {}.", conversationId);
+			return CallbackResult.BAD_REQUEST;
+		}
+		return handler.handle(observation);
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
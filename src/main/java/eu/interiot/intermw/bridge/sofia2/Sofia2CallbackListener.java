@@ -0,0 +1,602 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded HTTP server that receives SOFIA2 indications, used instead of the Spark server of INTER-MW
+ * when callback-listener is nio.
+ *
+ * Connections are served by ioThreads event loops (one selector each) that read the requests without blocking.
+ * The body of a request is read into a ByteBuffer, which is handed to a worker thread without copying it.
+ * Connection buffers are direct, so the socket reads into them without the intermediate copy that
+ * the JDK makes for heap buffers. They are kept while the connection is open.
+ * The worker dispatches the callback and the event loop writes the response.
+ * Connections are kept alive for keepAlive ms between requests, and requests larger than maxBodySize
+ * bytes are rejected with 413.
+ *
+ * A listener can be shared by all the bridges of the JVM that use the same port (callback-listener-shared),
+ * or each bridge can run its own. A shared listener keeps the settings of the bridge that started it.
+ */
+class Sofia2CallbackListener implements Closeable {
+	private static final int MAX_HEADER_SIZE = 8192;
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final long DEFAULT_IDLE_TIMEOUT = 30000; // Time to receive a request when keep-alive is disabled
+	private static final long SELECT_TIMEOUT = 1000;
+	private static final String PATH_PREFIX = "/" + Sofia2CallbackDispatcher.CALLBACK_PATH;
+
+	private static final Map<Integer, Sofia2CallbackListener> sharedListeners = new HashMap<Integer, Sofia2CallbackListener>(); // Port -> listener
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2CallbackListener.class);
+	private final Sofia2CallbackDispatcher dispatcher = new Sofia2CallbackDispatcher();
+	private final ServerSocketChannel server;
+	private final EventLoop[] eventLoops;
+	private final ExecutorService workers;
+	private final long keepAlive;
+	private final long idleTimeout;
+	private final int maxBodySize;
+	private final URL publicUrl; // Null to use the host of the INTER-MW callback URL
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private Integer sharedPort; // Key in sharedListeners, null if the listener is not shared
+	private String settings; // Settings of a shared listener, to detect bridges configured differently
+	private int references; // Bridges using a shared listener. Guarded by sharedListeners
+	private volatile boolean closed;
+
+	Sofia2CallbackListener(int port, int ioThreads, int workerThreads, long keepAlive, int maxBodySize, URL publicUrl) throws IOException {
+		this.keepAlive = keepAlive;
+		this.idleTimeout = keepAlive > 0 ? keepAlive : DEFAULT_IDLE_TIMEOUT;
+		this.maxBodySize = maxBodySize;
+		this.publicUrl = publicUrl;
+		this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-callback-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		eventLoops = new EventLoop[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			eventLoops[i] = new EventLoop(i);
+		}
+		server.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.thread.start();
+		}
+		logger.info("SOFIA2 callback listener started on port {}.", getPort());
+	}
+
+	/**
+	 * Returns the listener configured in the bridge properties.
+	 * Shared listeners are started the first time they are requested. Each bridge must close the listener
+	 * when it no longer needs it, and a shared listener stops when the last bridge using it closes it.
+	 *
+	 * @return null if callbacks are received by the Spark server of INTER-MW (callback-listener is spark)
+	 */
+	static Sofia2CallbackListener create(Properties properties) throws IOException {
+		String type = properties.getProperty("callback-listener", "spark");
+		boolean shared = Boolean.valueOf(properties.getProperty("callback-listener-shared", "true"));
+		int port = Integer.valueOf(properties.getProperty("callback-listener-port", "0"));
+		int ioThreads = Integer.valueOf(properties.getProperty("callback-listener-io-threads", "1"));
+		int workerThreads = Integer.valueOf(properties.getProperty("callback-listener-workers", "4"));
+		long keepAlive = Long.valueOf(properties.getProperty("callback-listener-keep-alive", "30000"));
+		int maxBodySize = Integer.valueOf(properties.getProperty("callback-listener-max-body", "1048576"));
+		String url = properties.getProperty("callback-listener-url");
+		URL publicUrl = url != null && !url.trim().isEmpty() ? new URL(url.trim()) : null;
+		if (!type.equals("nio")) return null;
+		if (!shared) return new Sofia2CallbackListener(port, ioThreads, workerThreads, keepAlive, maxBodySize, publicUrl);
+		String settings = "io-threads=" + ioThreads + ", workers=" + workerThreads + ", keep-alive=" + keepAlive
+				+ ", max-body=" + maxBodySize + ", url=" + publicUrl;
+		synchronized (sharedListeners) {
+			Sofia2CallbackListener listener = sharedListeners.get(port);
+			if (listener == null) {
+				listener = new Sofia2CallbackListener(port, ioThreads, workerThreads, keepAlive, maxBodySize, publicUrl);
+				listener.sharedPort = port;
+				listener.settings = settings;
+				sharedListeners.put(port, listener);
+			} else if (!listener.settings.equals(settings)) {
+				listener.logger.warn("The callback listener on port {} is shared and keeps its settings ({}). The settings of this bridge are ignored: {}.",
+						port, listener.settings, settings);
+			}
+			listener.references++;
+			return listener;
+		}
+	}
+
+	Sofia2CallbackDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Base URL of the callback endpoints, to be sent to SOFIA2 in the subscriptions.
+	 * Unless callback-listener-url is set, it is the host of the INTER-MW callback URL with the port of the listener.
+	 */
+	URL getBaseUrl(URL bridgeCallbackUrl) throws MalformedURLException {
+		if (publicUrl != null) return publicUrl;
+		return new URL("http", bridgeCallbackUrl.getHost(), getPort(), "/");
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (sharedPort != null) {
+			synchronized (sharedListeners) {
+				if (--references > 0) return; // Still used by other bridges
+				sharedListeners.remove(sharedPort);
+			}
+		}
+		closed = true;
+		server.close();
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.selector.wakeup();
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Selector thread. Accepted connections are distributed among the event loops.
+	 */
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // Run in the event loop thread
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "sofia2-callback-io-" + index);
+			thread.setDaemon(true);
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			long lastIdleCheck = System.currentTimeMillis();
+			while (!closed) {
+				try {
+					selector.select(SELECT_TIMEOUT);
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					for (SelectionKey key : selector.selectedKeys()) {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Connection connection = (Connection) key.attachment();
+							try {
+								if (key.isWritable()) connection.write();
+								// Not while a worker processes the request, if the write has just handed it over
+								if (key.isValid() && key.isReadable() && (key.interestOps() & SelectionKey.OP_READ) != 0) connection.read();
+							} catch (IOException e) {
+								logger.debug("Callback connection closed: " + e.getMessage());
+								connection.close();
+							}
+						}
+					}
+					selector.selectedKeys().clear();
+					long now = System.currentTimeMillis();
+					if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+						closeIdleConnections(now);
+						lastIdleCheck = now;
+					}
+				} catch (Exception e) {
+					if (!closed) logger.error("Error in SOFIA2 callback listener: " + e.getMessage(), e);
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.debug("Error closing selector: " + e.getMessage());
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				EventLoop eventLoop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+				SocketChannel accepted = channel;
+				if (eventLoop == this) register(accepted);
+				else eventLoop.execute(() -> register(accepted));
+			}
+		}
+
+		private void register(SocketChannel channel) {
+			try {
+				Connection connection = new Connection(this, channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				logger.debug("Error registering callback connection: " + e.getMessage());
+			}
+		}
+
+		private void closeIdleConnections(long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (!(key.attachment() instanceof Connection)) continue;
+				Connection connection = (Connection) key.attachment();
+				if (!connection.processing && now - connection.lastActivity > idleTimeout) connection.close();
+			}
+		}
+	}
+
+	/**
+	 * State of one HTTP connection. It is only accessed by its event loop, except for the body
+	 * while a worker processes the request (reading is suspended meanwhile).
+	 */
+	private class Connection {
+		final EventLoop eventLoop;
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE); // Received bytes are in [0, position)
+		ByteBuffer out;
+		ByteBuffer interim; // 100 Continue response not completely written yet
+		long lastActivity = System.currentTimeMillis();
+		boolean processing; // A worker is processing the request or the response is being written
+		boolean closeAfterResponse;
+
+		// Current request
+		int headerEnd = -1; // Start of the body
+		int requestEnd;
+		String method;
+		String path;
+		boolean keepAliveRequested;
+		boolean chunked;
+		int contentLength;
+		int chunkRead; // Next chunk header
+		int chunkWrite; // End of the decoded body
+
+		Connection(EventLoop eventLoop, SocketChannel channel) {
+			this.eventLoop = eventLoop;
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			if (!in.hasRemaining() && !grow()) return;
+			int count = channel.read(in);
+			if (count == -1) {
+				close();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			process();
+		}
+
+		// Parses the received bytes and hands the request to a worker when it is complete
+		private void process() throws IOException {
+			if (headerEnd < 0) {
+				int end = indexOfHeaderEnd();
+				if (end < 0) {
+					if (in.position() >= MAX_HEADER_SIZE) respond(431, 0, true); // Request Header Fields Too Large
+					return;
+				}
+				headerEnd = end;
+				if (!parseHeader()) return;
+			}
+			ByteBuffer body = chunked ? decodeChunks() : completeBody();
+			if (body == null) return;
+			if (body.remaining() > maxBodySize) {
+				respond(413, 0, true); // Payload Too Large
+				return;
+			}
+			String conversationId = path.substring(PATH_PREFIX.length());
+			processing = true;
+			key.interestOps(0);
+			try {
+				workers.execute(() -> {
+					Sofia2CallbackDispatcher.CallbackResult result;
+					try {
+						result = dispatcher.dispatch(conversationId, body);
+					} catch (Exception e) {
+						logger.error("Error processing callback of conversation " + conversationId + ": " + e.getMessage());
+						result = new Sofia2CallbackDispatcher.CallbackResult(500, 0);
+					}
+					Sofia2CallbackDispatcher.CallbackResult response = result;
+					eventLoop.execute(() -> respond(response.status, response.retryAfter, false));
+				});
+			} catch (RejectedExecutionException e) {
+				respond(503, 1, true); // The listener is being closed
+			}
+		}
+
+		// Reads the request line and the headers. Returns false if the request has been rejected
+		private boolean parseHeader() throws IOException {
+			String[] lines = string(0, headerEnd).split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3) {
+				respond(400, 0, true);
+				return false;
+			}
+			method = requestLine[0];
+			int query = requestLine[1].indexOf('?');
+			path = query < 0 ? requestLine[1] : requestLine[1].substring(0, query);
+			keepAliveRequested = requestLine[2].equals("HTTP/1.1");
+			contentLength = -1;
+			chunked = false;
+			boolean expectContinue = false;
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon < 0) continue;
+				String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+				if (name.equals("content-length")) {
+					try {
+						contentLength = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						respond(400, 0, true);
+						return false;
+					}
+				} else if (name.equals("transfer-encoding")) {
+					chunked = value.endsWith("chunked");
+				} else if (name.equals("connection")) {
+					if (value.contains("close")) keepAliveRequested = false;
+					else if (value.contains("keep-alive")) keepAliveRequested = true;
+				} else if (name.equals("expect")) {
+					expectContinue = value.equals("100-continue");
+				}
+			}
+			if (!method.equals("POST")) {
+				respond(405, 0, true); // Method Not Allowed
+				return false;
+			}
+			if (!path.startsWith(PATH_PREFIX) || path.length() == PATH_PREFIX.length() || path.indexOf('/', PATH_PREFIX.length()) >= 0) {
+				respond(404, 0, true);
+				return false;
+			}
+			if (!chunked && contentLength < 0) {
+				respond(411, 0, true); // Length Required
+				return false;
+			}
+			if (contentLength > maxBodySize) {
+				respond(413, 0, true);
+				return false;
+			}
+			chunkRead = headerEnd;
+			chunkWrite = headerEnd;
+			if (expectContinue && in.position() == headerEnd) {
+				interim = ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				writeInterim();
+			}
+			return true;
+		}
+
+		// Returns the body once it has been completely received
+		private ByteBuffer completeBody() {
+			if (in.position() < headerEnd + contentLength) return null;
+			requestEnd = headerEnd + contentLength;
+			return slice(headerEnd, requestEnd);
+		}
+
+		// Decodes the received chunks in place. Returns the body after the last chunk
+		private ByteBuffer decodeChunks() throws IOException {
+			while (true) {
+				int lineEnd = indexOf(in, chunkRead, in.position(), (byte) '\r', (byte) '\n');
+				if (lineEnd < 0) return null;
+				String sizeLine = string(chunkRead, lineEnd);
+				int extension = sizeLine.indexOf(';');
+				int size;
+				try {
+					size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+				} catch (NumberFormatException e) {
+					respond(400, 0, true);
+					return null;
+				}
+				if (size < 0) { // parseInt accepts a sign
+					respond(400, 0, true);
+					return null;
+				}
+				if (size == 0) {
+					// Last chunk, followed by optional trailer fields and an empty line
+					int trailerEnd = indexOf(in, lineEnd, in.position(), (byte) '\r', (byte) '\n', (byte) '\r', (byte) '\n');
+					if (trailerEnd < 0) return null;
+					requestEnd = trailerEnd + 4;
+					return slice(headerEnd, chunkWrite);
+				}
+				if (size > maxBodySize - (chunkWrite - headerEnd)) {
+					respond(413, 0, true);
+					return null;
+				}
+				int dataStart = lineEnd + 2;
+				if (in.position() < dataStart + size + 2) return null;
+				// The data is moved back over the chunk headers (chunkWrite < dataStart), so copying forward is safe
+				ByteBuffer decoded = in.duplicate();
+				decoded.position(chunkWrite);
+				decoded.put(slice(dataStart, dataStart + size));
+				chunkWrite += size;
+				chunkRead = dataStart + size + 2;
+			}
+		}
+
+		// Makes room for more data. The buffer only grows up to the size of the current request
+		private boolean grow() throws IOException {
+			int limit;
+			if (headerEnd < 0) limit = MAX_HEADER_SIZE;
+			else if (chunked) limit = headerEnd + maxBodySize + MAX_HEADER_SIZE; // Chunk headers are also buffered
+			else limit = headerEnd + contentLength;
+			if (in.capacity() >= limit) {
+				respond(headerEnd < 0 ? 431 : 413, 0, true);
+				return false;
+			}
+			ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(limit, in.capacity() * 2L));
+			in.flip();
+			grown.put(in);
+			in = grown;
+			return true;
+		}
+
+		// Called in the event loop thread
+		void respond(int status, int retryAfter, boolean close) {
+			if (!channel.isOpen()) return;
+			closeAfterResponse = close || keepAlive <= 0 || !keepAliveRequested;
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+			response.append("Content-Length: 0\r\n");
+			if (retryAfter > 0) response.append("Retry-After: ").append(retryAfter).append("\r\n");
+			if (closeAfterResponse) response.append("Connection: close\r\n");
+			response.append("\r\n");
+			byte[] bytes = response.toString().getBytes(StandardCharsets.ISO_8859_1);
+			if (interim != null) {
+				// The rest of the 100 Continue response goes first
+				out = ByteBuffer.allocate(interim.remaining() + bytes.length);
+				out.put(interim).put(bytes).flip();
+				interim = null;
+			} else {
+				out = ByteBuffer.wrap(bytes);
+			}
+			processing = true;
+			try {
+				write();
+			} catch (IOException e) {
+				logger.debug("Error writing callback response: " + e.getMessage());
+				close();
+			}
+		}
+
+		void write() throws IOException {
+			if (out == null) {
+				writeInterim();
+				return;
+			}
+			channel.write(out);
+			lastActivity = System.currentTimeMillis();
+			if (out.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			out = null;
+			if (closeAfterResponse) {
+				close();
+				return;
+			}
+			nextRequest();
+		}
+
+		// Writes what the socket takes of the 100 Continue response. The rest is written when the socket is writable
+		private void writeInterim() throws IOException {
+			channel.write(interim);
+			if (interim.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			interim = null;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+
+		// Keeps the bytes of the next request (if the client sends requests without waiting for the responses)
+		private void nextRequest() throws IOException {
+			int pending = in.position() - requestEnd;
+			ByteBuffer next = in.capacity() > INITIAL_BUFFER_SIZE && pending <= INITIAL_BUFFER_SIZE ? ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE) : in;
+			ByteBuffer pendingBytes = slice(requestEnd, requestEnd + pending);
+			next.clear();
+			next.put(pendingBytes); // Moved to the start of the buffer, also if it is the same buffer
+			in = next;
+			headerEnd = -1;
+			requestEnd = 0;
+			processing = false;
+			key.interestOps(SelectionKey.OP_READ);
+			if (pending > 0) process();
+		}
+
+		void close() {
+			try {
+				if (key != null) key.cancel();
+				channel.close();
+			} catch (IOException e) {
+				logger.debug("Error closing callback connection: " + e.getMessage());
+			}
+		}
+
+		private int indexOfHeaderEnd() {
+			int end = indexOf(in, 0, in.position(), (byte) '\r', (byte) '\n', (byte) '\r', (byte) '\n');
+			return end < 0 ? -1 : end + 4;
+		}
+
+		private ByteBuffer slice(int start, int end) {
+			ByteBuffer body = in.duplicate();
+			body.limit(end).position(start);
+			return body.slice();
+		}
+
+		private String string(int start, int end) {
+			byte[] bytes = new byte[end - start];
+			slice(start, end).get(bytes);
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private static int indexOf(ByteBuffer data, int from, int to, byte... pattern) {
+		for (int i = from; i <= to - pattern.length; i++) {
+			int j = 0;
+			while (j < pattern.length && data.get(i + j) == pattern[j]) j++;
+			if (j == pattern.length) return i;
+		}
+		return -1;
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+		case 200: return "OK";
+		case 400: return "Bad Request";
+		case 404: return "Not Found";
+		case 405: return "Method Not Allowed";
+		case 411: return "Length Required";
+		case 413: return "Payload Too Large";
+		case 429: return "Too Many Requests";
+		case 431: return "Request Header Fields Too Large";
+		case 503: return "Service Unavailable";
+		default: return "Error";
+		}
+	}
+
+}
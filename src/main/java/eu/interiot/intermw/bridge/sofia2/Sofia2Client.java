@@ -22,18 +22,21 @@ package eu.interiot.intermw.bridge.sofia2;
  * For more information, contact:
  * - @author <a href="mailto:majuse@upv.es">Matilde Julián</a>  
  */
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
 import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -46,16 +49,18 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 import eu.interiot.intermw.bridge.exceptions.BridgeException;
 
 
-public class Sofia2Client {
+public class Sofia2Client implements Closeable {
 	private String url;
 	private String KpInstance;
-	private String sessionKey;
+	private Sofia2SessionManager session;
 	private String KP;
 	private String deviceOntologyName;
 //	private String deviceIdentifier;
@@ -65,10 +70,13 @@ public class Sofia2Client {
 	private String sofiaUser, sofiaPassword;
 	private int msSubscriptionRefresh;
 	private int msSessionRefresh;
-	Thread sessionRefresh;
+	private int bulkSize;
+	private int queryBatchSize;
+	private int listPageSize;
 	private final Logger logger = LoggerFactory.getLogger(Sofia2Client.class);
 	private String trustStore;
 	private String trustStorePass;
+	private Sofia2Transport transport;
 	
 	Sofia2Client(Properties properties, String baseUrl) throws Exception{
 		try {
@@ -85,29 +93,15 @@ public class Sofia2Client {
             trustStorePass = properties.getProperty("certificate-password"); // For self-signed certificates
             msSubscriptionRefresh = Integer.valueOf(properties.getProperty("subscription-refresh", "0")); // Subscription refresh parameter
             msSessionRefresh = Integer.valueOf(properties.getProperty("session-refresh", "600000"));
-            
-            sessionKey = null;
+            bulkSize = Integer.valueOf(properties.getProperty("bulk-size", "500")); // Max. number of instances per bulk request
+            queryBatchSize = Integer.valueOf(properties.getProperty("query-batch-size", "100")); // Max. number of identifiers per $in query
+            listPageSize = Integer.valueOf(properties.getProperty("list-page-size", "100")); // Max. number of instances per list request
             
             if(KP == null){
             	throw new Exception("Error in bridge configuration: no KP");
             }
             
-            sessionRefresh = new Thread(){
-				public void run(){
-					
-					while(!this.isInterrupted()){
-						 try {
-							Thread.sleep(msSessionRefresh);
-							join();
-						} catch (InterruptedException e) {
-							Thread.currentThread().interrupt();
-						}catch (Exception ex) {
-							ex.printStackTrace();
-							Thread.currentThread().interrupt();
-						} 
-					}
-				}
-			};
+            session = new Sofia2SessionManager(this::requestJoin, msSessionRefresh); // Refreshes the session in the background
             
 			if(url.startsWith("https") && trustStore != null){
 	    		// TO AVOID PROBLEMS WITH SSL SELF-SIGNED CERTIFICATES
@@ -176,7 +170,10 @@ public class Sofia2Client {
 	    			SSLContext sslContext = SSLContext.getInstance("SSL");
 	    			sslContext.init(null, new TrustManager[] { customTm }, null);
 	    			HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+	    			transport = Sofia2Transport.create(properties, sslContext);
 	    		
+			}else{
+				transport = Sofia2Transport.create(properties, null);
 			}
 			
             
@@ -197,95 +194,64 @@ public class Sofia2Client {
 	}
 	
 	String invoke(String queryUrl, String method, JsonObject ssapResource) throws Exception{
-		URL obj = new URL(queryUrl);
-		byte[] postData = ssapResource.toString().getBytes(StandardCharsets.UTF_8); 
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		con.setDoOutput(true);
-		con.setDoInput(true);
-		con.setUseCaches(false);
-		con.setRequestMethod(method);
-		con.setRequestProperty("Content-Type", "application/json; charset=UTF-8"); 
-		con.setRequestProperty("Content-Length", Integer.toString(postData.length));
-		con.connect();
-		OutputStream os = con.getOutputStream();
-		os.write(postData);
-		int responseCode = con.getResponseCode(); 
-		
-		if (responseCode < 200 || responseCode > 299) {
-            throw new Exception("Unsuccessful server response: " + responseCode);
-        }
-		
-		BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		StringBuffer response = new StringBuffer();
-
-		while ((inputLine = in.readLine()) != null) {
-			response.append(inputLine);
+		try {
+			return transport.execute(method, queryUrl, ssapResource.toString(), null);
+		} catch (Exception e) {
+			JsonElement expiredKey = ssapResource.get("sessionKey");
+			if (expiredKey == null || expiredKey.isJsonNull() || !Sofia2SessionManager.isSessionError(e)) throw e;
+			// The session has expired. Join again and repeat the request with the new key
+			ssapResource.addProperty("sessionKey", session.rejoin(expiredKey.getAsString()));
+			return transport.execute(method, queryUrl, ssapResource.toString(), null);
 		}
-		in.close();
-		os.flush();
-		os.close();
-		con.disconnect();
-		return response.toString();
 	}
 	
 	String invokeGet(String queryUrl) throws Exception{
-		URL obj = new URL(queryUrl);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		int responseCode = 0;
-		try{
-			con.setDoInput(true);
-			con.setRequestMethod("GET");
-			con.setRequestProperty("Accept", "application/json"); 
-			con.connect();
-			responseCode = con.getResponseCode();
-		}catch(Exception ex){
-			throw ex;
-		}
-		
-		if (responseCode < 200 || responseCode > 299) {
-            throw new Exception("Unsuccessful server response: " + responseCode);
-        }
-		
-		BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		StringBuffer response = new StringBuffer();
-		while ((inputLine = in.readLine()) != null) {
-			response.append(inputLine);
+		return invokeGet(queryUrl, response -> {
+			StringBuilder body = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = response.read(buffer)) != -1) {
+				body.append(buffer, 0, read);
+			}
+			return body.toString();
+		});
+	}
+	
+	/**
+	 * Sends a GET request with the session key in the $sessionKey parameter.
+	 * If the session has expired, the request is repeated once with a new session.
+	 */
+	private <T> T invokeGet(String queryUrl, Sofia2Transport.ResponseReader<T> reader) throws Exception{
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Accept", "application/json");
+		try {
+			return transport.execute("GET", queryUrl, null, headers, reader);
+		} catch (Exception e) {
+			String expiredKey = sessionKeyOf(queryUrl);
+			if (expiredKey == null || !Sofia2SessionManager.isSessionError(e)) throw e;
+			String retryUrl = queryUrl.replace("$sessionKey=" + expiredKey, "$sessionKey=" + session.rejoin(expiredKey));
+			return transport.execute("GET", retryUrl, null, headers, reader);
 		}
-		in.close();
-		con.disconnect();
-		return response.toString();
-		
+	}
+	
+	private static String sessionKeyOf(String queryUrl) {
+		int start = queryUrl.indexOf("$sessionKey=");
+		if (start < 0) return null;
+		start += "$sessionKey=".length();
+		int end = queryUrl.indexOf('&', start);
+		return end < 0 ? queryUrl.substring(start) : queryUrl.substring(start, end);
 	}
 	
 	void getToken(String queryUrl, String user, String password) throws Exception{
-		URL obj = new URL(queryUrl);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		con.setDoInput(true);
-		con.setUseCaches(false);
-		con.setRequestMethod("GET");
-		con.setRequestProperty("Accept", "application/json; charset=UTF-8");
 		String authString = user + ":" + password;
 		String basicAuth = "Basic " + javax.xml.bind.DatatypeConverter.printBase64Binary(authString.getBytes());
-		con.setRequestProperty ("Authorization", basicAuth);
-		con.connect();
-		int responseCode = con.getResponseCode(); 
-		
-		if (responseCode < 200 || responseCode > 299) {
-            throw new Exception("Unsuccessful server response: " + responseCode);
-        }
-		
-		BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		StringBuffer response = new StringBuffer();
-
-		while ((inputLine = in.readLine()) != null) {
-			response.append(inputLine);
-		}
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Accept", "application/json; charset=UTF-8");
+		headers.put("Authorization", basicAuth);
+		String response = transport.execute("GET", queryUrl, null, headers);
 		
 		JsonParser parser = new JsonParser();
-		JsonArray body = parser.parse(response.toString()).getAsJsonArray();
+		JsonArray body = parser.parse(response).getAsJsonArray();
 		for(int i = 0; i< body.size(); i++){
 			JsonObject object = body.get(i).getAsJsonObject();
 			if(object.get("activo").getAsBoolean() == true){
@@ -293,38 +259,55 @@ public class Sofia2Client {
 				break;
 			}
 		}
-		in.close();
 	}
 	
 	void join() throws Exception{
+		session.join();
+	}
+	
+	void leave() throws Exception{
+		session.leave(this::requestLeave);
+	}
+	
+	/**
+	 * Stops the session refresh and closes the connections to SOFIA2. The client cannot be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException{
+		session.shutdown();
+		transport.close();
+	}
+	
+	/**
+	 * Sends a SSAP JOIN request. Called by the session manager, which serializes joins.
+	 * 
+	 * @param currentKey session to refresh, or null to open a new session
+	 */
+	private String requestJoin(String currentKey) throws Exception{
 		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
 		JsonObject ssapResource = new JsonObject();
 		ssapResource.addProperty("join", true);
 		ssapResource.addProperty("instanceKP", KP +":"+ KpInstance);
 		ssapResource.addProperty("token", TOKEN);
-		if ((sessionKey != null) && (!sessionKey.equals(""))) ssapResource.addProperty("sessionKey", sessionKey); // Refresh session
+		if ((currentKey != null) && (!currentKey.equals(""))) ssapResource.addProperty("sessionKey", currentKey); // Refresh session
 		
-		String responseJoin = invoke(queryURL, "POST", ssapResource);
+		String responseJoin = transport.execute("POST", queryURL, ssapResource.toString(), null);
 		JsonParser parser = new JsonParser();
 		JsonObject ssapResponse = parser.parse(responseJoin).getAsJsonObject();
-		sessionKey = ssapResponse.get("sessionKey").getAsString();
+		JsonElement newKey = ssapResponse.get("sessionKey");
 
-		if ((sessionKey == null) || (sessionKey.equals(""))) {
-			throw new Exception("JOIN operation failed");
-		}else{
-			sessionRefresh.start();
+		if (newKey == null || newKey.isJsonNull() || newKey.getAsString().equals("")) {
+			throw new Exception("JOIN operation failed"); // The previous key is kept
 		}
-		
+		return newKey.getAsString();
 	}
 	
-	void leave() throws Exception{
+	private void requestLeave(String sessionKey) throws Exception{
 		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
 		JsonObject ssapResource = new JsonObject();
 		ssapResource.addProperty("leave", true);
 		ssapResource.addProperty("sessionKey", sessionKey);
-		sessionKey = null;
-		sessionRefresh.interrupt();
-		invoke(queryURL, "POST", ssapResource);
+		transport.execute("POST", queryURL, ssapResource.toString(), null); // Not repeated if the session has expired
 	}
 	
 	
@@ -333,7 +316,7 @@ public class Sofia2Client {
 		String query;
 		String data;
 		
-		String params = "?$sessionKey=" + sessionKey;
+		String params = "?$sessionKey=" + session.getSessionKey();
 		if(fieldName.equals("_id")){
 			query = "db." + ontName + ".find({\"" + fieldName + "\":{\"$oid\":\"" + fieldValue + "\"}})"; // Query by unique id
 		}else{
@@ -366,7 +349,7 @@ public class Sofia2Client {
 		
 		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource";
 		
-		String params = "?$sessionKey=" + sessionKey;
+		String params = "?$sessionKey=" + session.getSessionKey();
 		params = params + "&$ontology=" + ontName;
 		params = params + "&$query=db."+ ontName +".find()";
 		params = params + "&$queryType=NATIVE";
@@ -383,6 +366,72 @@ public class Sofia2Client {
 		return list(deviceOntologyName);
 	}
 	
+	/**
+	 * Receives the instances of an ontology one by one, as they are read from the SOFIA2 response.
+	 * Each instance is given with its tokens and routing values already read (see {@link Sofia2Instance}).
+	 */
+	interface InstanceHandler {
+		void handle(Sofia2Instance instance) throws Exception;
+	}
+	
+	/**
+	 * Lists all instances of an ontology in pages of listPageSize instances.
+	 * Pages are requested in _id order, starting after the last _id of the previous page,
+	 * so neither the client nor the server has to hold the whole ontology in memory.
+	 * 
+	 * @return the number of instances passed to the handler
+	 */
+	int list(String ontName, InstanceHandler handler) throws Exception{
+		int total = 0;
+		String lastId = null;
+		while (true) {
+			String filter = lastId == null ? "" : "{\"_id\":{\"$gt\":{\"$oid\":\"" + lastId + "\"}}}";
+			String query = "db." + ontName + ".find(" + filter + ").sort({\"_id\":1}).limit(" + listPageSize + ")";
+			Page page = listPage(ontName, query, handler);
+			total += page.size;
+			if (page.size < listPageSize || page.lastId == null || page.lastId.equals(lastId)) break;
+			lastId = page.lastId;
+		}
+		return total;
+	}
+	
+	int list(InstanceHandler handler) throws Exception{
+		return list(deviceOntologyName, handler);
+	}
+	
+	/**
+	 * Runs a native query and passes the instances to the handler as they are read from the response.
+	 * 
+	 * @return the number of instances passed to the handler
+	 */
+	int find(String ontName, String query, InstanceHandler handler) throws Exception{
+		return listPage(ontName, query, handler).size;
+	}
+	
+	private Page listPage(String ontName, String query, InstanceHandler handler) throws Exception{
+		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource";
+		String params = "?$sessionKey=" + session.getSessionKey();
+		params = params + "&$ontology=" + ontName;
+		params = params + "&$query=" + URLEncoder.encode(query, "UTF-8");
+		params = params + "&$queryType=NATIVE";
+
+		logger.debug("Query: " + queryUrl + params);
+		return invokeGet(queryUrl + params, response -> {
+			Page page = new Page();
+			// Each instance is parsed once, here. The _id of the last one starts the next page
+			page.size = Sofia2SsapReader.elements(Sofia2SsapReader.field(response, "data"), instance -> {
+				page.lastId = instance.getObjectId();
+				handler.handle(instance);
+			});
+			return page;
+		});
+	}
+	
+	private static class Page {
+		int size;
+		String lastId;
+	}
+	
 	void register(String ontName, String fieldName, String thingId) throws Exception{
 		String res = query(ontName, fieldName, thingId);
 		if (res.equals("[ ]")){
@@ -398,10 +447,124 @@ public class Sofia2Client {
 		}
 	}
 	
+	/**
+	 * Registers several devices of the same ontology.
+	 * $in queries find the devices that already exist and the missing ones are created with bulk inserts.
+	 */
+	Sofia2BatchResult<Void> registerAll(String ontName, String fieldName, Collection<String> thingIds) throws Exception{
+		Sofia2BatchResult<Void> result = new Sofia2BatchResult<Void>();
+		Set<String> existing = findIdentifiers(ontName, fieldName, thingIds);
+
+		List<String> missing = new ArrayList<String>();
+		for (String thingId : thingIds) {
+			if (existing.contains(thingId)) result.success(thingId, null);
+			else missing.add(thingId);
+		}
+
+		// Entities that do not exist are created as virtual devices
+		// Only id and name are provided by the input message
+		for (int i = 0; i < missing.size(); i += bulkSize) {
+			List<String> chunk = missing.subList(i, Math.min(i + bulkSize, missing.size()));
+			JsonArray devices = new JsonArray();
+			for (String thingId : chunk) {
+				JsonObject deviceId = new JsonObject();
+				if(fieldName.equals("_id") || identifierType.equals(STRING_TYPE)) deviceId.addProperty(fieldName, thingId);
+				else deviceId.addProperty(fieldName, Long.valueOf(thingId));
+				JsonObject device = new JsonObject();
+				device.add(ontName, deviceId);
+				devices.add(device);
+			}
+			try {
+				insert(ontName, devices.toString()); // An array of instances is inserted in one request
+				for (String thingId : chunk) result.success(thingId, null);
+			} catch (Exception e) {
+				for (String thingId : chunk) result.failure(thingId, e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns which of the given identifiers exist in the ontology, using queries with the $in operator.
+	 */
+	Set<String> findIdentifiers(String ontName, String fieldName, Collection<String> fieldValues) throws Exception{
+		Set<String> found = new HashSet<String>();
+		findIn(ontName, fieldName, fieldValues, instance -> {
+			String identifier = instance.getIdentifier(ontName, fieldName);
+			if (identifier != null) found.add(identifier);
+		});
+		return found;
+	}
+
+	/**
+	 * Runs native queries that return the _id, the timestamp and the identifier of the instances
+	 * whose identifier is one of the given values.
+	 * As in list(), the results are requested in pages of listPageSize instances in _id order,
+	 * because an ontology may keep many instances of each device.
+	 */
+	private void findIn(String ontName, String fieldName, Collection<String> fieldValues, InstanceHandler handler) throws Exception{
+		JsonObject projection = new JsonObject();
+		projection.addProperty("_id", 1);
+		projection.addProperty("contextData.timestamp", 1);
+		if (!fieldName.equals("_id")) projection.addProperty(ontName + "." + fieldName, 1);
+
+		// The query is sent in the URL, so long lists are split to keep it under the server limits
+		List<String> valueList = new ArrayList<String>(fieldValues);
+		for (int i = 0; i < valueList.size(); i += queryBatchSize) {
+			JsonArray values = new JsonArray();
+			for (String fieldValue : valueList.subList(i, Math.min(i + queryBatchSize, valueList.size()))) {
+				values.add(identifierValue(fieldName, fieldValue));
+			}
+			JsonObject in = new JsonObject();
+			in.add("$in", values);
+			JsonObject filter = new JsonObject();
+			filter.add(fieldName, in);
+
+			String lastId = null;
+			while (true) {
+				if (lastId != null) {
+					// Next page: the _id condition is added to the $in one when the identifier is the _id
+					JsonObject idCondition = fieldName.equals("_id") ? in : new JsonObject();
+					idCondition.add("$gt", identifierValue("_id", lastId));
+					filter.add("_id", idCondition);
+				}
+				String query = "db." + ontName + ".find(" + filter + "," + projection + ").sort({\"_id\":1}).limit(" + listPageSize + ")";
+				Page page = listPage(ontName, query, handler);
+				if (page.size < listPageSize || page.lastId == null || page.lastId.equals(lastId)) break;
+				lastId = page.lastId;
+			}
+		}
+	}
+
+	private JsonElement identifierValue(String fieldName, String fieldValue) {
+		if (fieldName.equals("_id")) {
+			JsonObject objectId = new JsonObject();
+			objectId.addProperty("$oid", fieldValue);
+			return objectId;
+		}
+		if (identifierType.equals(STRING_TYPE)) return new JsonPrimitive(fieldValue);
+		return new JsonPrimitive(Long.valueOf(fieldValue));
+	}
+
+	private String nativeQuery(String ontName, String query) throws Exception{
+		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource";
+		String params = "?$sessionKey=" + session.getSessionKey();
+		params = params + "&$ontology=" + ontName;
+		params = params + "&$query=" + URLEncoder.encode(query, "UTF-8");
+		params = params + "&$queryType=NATIVE";
+
+		logger.debug("Query: " + queryUrl + params);
+		String response = invokeGet(queryUrl + params);
+		JsonParser parser = new JsonParser();
+		JsonElement data = parser.parse(response).getAsJsonObject().get("data");
+		if (data == null || data.isJsonNull()) return "[ ]"; // An empty SOFIA2 response
+		return data.getAsString();
+	}
+
 	void insert(String ontName, String data) throws Exception{
 		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
 		JsonObject ssapResource = new JsonObject();
-		ssapResource.addProperty("sessionKey", sessionKey);
+		ssapResource.addProperty("sessionKey", session.getSessionKey());
 		ssapResource.addProperty("ontology",ontName);
 		ssapResource.addProperty("data", data);
 		
@@ -411,8 +574,6 @@ public class Sofia2Client {
 	
 	String subscribe(String ontName, String fieldName, String fieldValue, String callback) throws Exception{
 		String query;
-		String subscriptionId = "";
-		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource/subscribe";
 		String queryType;
 		
 		
@@ -432,7 +593,29 @@ public class Sofia2Client {
 			else query = "select * from " + ontName + " where " + ontName + "." + fieldName + " = " + fieldValue + " order by contextData.timestamp DESC limit 1";  // numeric identifier
 			queryType="SQLLIKE"; 
 		}
-		String params = "?$sessionKey=" + sessionKey;
+		return subscribeQuery(ontName, query, queryType, callback);
+	}
+	
+	/**
+	 * Subscribes to the instances of an ontology whose identifier is one of the given values,
+	 * with a single $in filter. The whole list is sent in the URL of the request.
+	 */
+	String subscribe(String ontName, String fieldName, Collection<String> fieldValues, String callback) throws Exception{
+		JsonArray values = new JsonArray();
+		for (String fieldValue : fieldValues) {
+			values.add(identifierValue(fieldName, fieldValue));
+		}
+		JsonObject in = new JsonObject();
+		in.add("$in", values);
+		JsonObject filter = new JsonObject();
+		filter.add(fieldName.equals("_id") ? fieldName : ontName + "." + fieldName, in);
+		return subscribeQuery(ontName, "db." + ontName + ".find(" + filter + ")", "NATIVE", callback);
+	}
+	
+	private String subscribeQuery(String ontName, String query, String queryType, String callback) throws Exception{
+		String subscriptionId = "";
+		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource/subscribe";
+		String params = "?$sessionKey=" + session.getSessionKey();
 		params = params + "&$msRefresh=" + msSubscriptionRefresh;
 		params = params + "&$ontology=" + ontName;
 		params = params + "&$query=" + URLEncoder.encode(query, "UTF-8");
@@ -454,7 +637,7 @@ public class Sofia2Client {
 	
 	String unsubscribe(String id) throws Exception{
 		String queryUrl = url + "sib/services/api_ssap/v01/SSAPResource/unsubscribe";
-		String params = "?$sessionKey=" + sessionKey;
+		String params = "?$sessionKey=" + session.getSessionKey();
 		params = params + "&$subscriptionId=" + id;
 		
 		return invokeGet(queryUrl + params);
@@ -464,7 +647,7 @@ public class Sofia2Client {
 	void update(String ontName, String data) throws Exception{
 		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
 		JsonObject ssapResource = new JsonObject();
-		ssapResource.addProperty("sessionKey", sessionKey);
+		ssapResource.addProperty("sessionKey", session.getSessionKey());
 		ssapResource.addProperty("ontology", ontName);
 		ssapResource.addProperty("data", data);
 		
@@ -473,6 +656,56 @@ public class Sofia2Client {
 	}	
 	
 	
+	/**
+	 * Deletes several devices of the same ontology.
+	 * Paged projection queries resolve the object ids of all the devices, which are then removed with bulk requests.
+	 * As in delete(), only the most recent instance of each device is removed.
+	 */
+	Sofia2BatchResult<Void> deleteAll(String ontName, String fieldName, Collection<String> fieldValues) throws Exception{
+		Sofia2BatchResult<Void> result = new Sofia2BatchResult<Void>();
+		Map<String, Sofia2Instance> latest = new HashMap<String, Sofia2Instance>(); // Most recent instance of each device
+		findIn(ontName, fieldName, fieldValues, instance -> {
+			String identifier = instance.getIdentifier(ontName, fieldName);
+			if (identifier == null || instance.getObjectId() == null) return;
+			Sofia2Instance previous = latest.get(identifier);
+			if (previous == null || isMoreRecent(instance, previous)) latest.put(identifier, instance);
+		});
+
+		List<String> found = new ArrayList<String>();
+		for (String fieldValue : fieldValues) {
+			if (latest.containsKey(fieldValue)) found.add(fieldValue);
+			else result.failure(fieldValue, new Exception("Thing does not exist"));
+		}
+
+		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
+		for (int i = 0; i < found.size(); i += bulkSize) {
+			List<String> chunk = found.subList(i, Math.min(i + bulkSize, found.size()));
+			JsonArray dataArray = new JsonArray();
+			for (String fieldValue : chunk) {
+				JsonObject dataObject = new JsonObject();
+				dataObject.add("_id", identifierValue("_id", latest.get(fieldValue).getObjectId()));
+				dataArray.add(dataObject);
+			}
+			JsonObject ssapResource = new JsonObject();
+			ssapResource.addProperty("sessionKey", session.getSessionKey());
+			ssapResource.addProperty("ontology", ontName);
+			ssapResource.addProperty("data", dataArray.toString());
+			try {
+				invoke(queryURL, "DELETE", ssapResource);
+				for (String fieldValue : chunk) result.success(fieldValue, null);
+			} catch (Exception e) {
+				for (String fieldValue : chunk) result.failure(fieldValue, e);
+			}
+		}
+		return result;
+	}
+
+	// Instances without a timestamp are the oldest, as in a descending sort by contextData.timestamp
+	private static boolean isMoreRecent(Sofia2Instance instance, Sofia2Instance other) {
+		if (instance.getTimestamp() == null) return false;
+		return other.getTimestamp() == null || instance.getTimestamp().compareTo(other.getTimestamp()) > 0;
+	}
+
 	void delete(String ontName, String fieldName, String fieldValue) throws Exception{
 		String data = query(ontName, fieldName, fieldValue);
 		if (data.equals("[ ]")){
@@ -485,7 +718,7 @@ public class Sofia2Client {
 		
 		String queryURL = url + "sib/services/api_ssap/v01/SSAPResource/";
 		JsonObject ssapResource = new JsonObject();
-		ssapResource.addProperty("sessionKey", sessionKey);
+		ssapResource.addProperty("sessionKey", session.getSessionKey());
 		ssapResource.addProperty("ontology",ontName);
 		JsonObject objectId = thing.get("_id").getAsJsonObject();
 		JsonObject dataObject = new JsonObject();
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the instances received recently to discard repeated observations.
+ *
+ * SOFIA2 may send the same instance more than once (subscription refresh, retries).
+ * Instances are identified by _id and timestamp (see {@link Sofia2Instance#getInstanceKey()}).
+ * Keys are kept per conversation: an instance delivered to each of the conversations subscribed
+ * to its device is not a duplicate.
+ * Keys are forgotten after windowMs, or earlier if there are more than maxEntries keys,
+ * so memory use is bounded.
+ */
+class Sofia2DuplicateFilter {
+	private final int maxEntries;
+	private final long windowMs;
+	private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>(); // Insertion order = reception order
+	private final AtomicLong duplicates = new AtomicLong();
+
+	Sofia2DuplicateFilter(int maxEntries, long windowMs) {
+		this.maxEntries = maxEntries;
+		this.windowMs = windowMs;
+	}
+
+	/**
+	 * @return null if the filter is disabled (duplicate-filter-size is 0)
+	 */
+	static Sofia2DuplicateFilter create(Properties properties) {
+		int maxEntries = Integer.valueOf(properties.getProperty("duplicate-filter-size", "10000"));
+		long windowMs = Long.valueOf(properties.getProperty("duplicate-filter-window", "600000"));
+		if (maxEntries <= 0) return null;
+		return new Sofia2DuplicateFilter(maxEntries, windowMs);
+	}
+
+	/**
+	 * Records the key and checks whether it had already been received by the conversation.
+	 * A null key (instance without _id or timestamp) is never a duplicate.
+	 */
+	boolean isDuplicate(String conversationId, String instanceKey) {
+		if (instanceKey == null) return false;
+		String key = conversationId + " " + instanceKey;
+		long now = System.currentTimeMillis();
+		synchronized (seen) {
+			// Forget expired keys. The oldest ones are at the beginning
+			Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+			while (it.hasNext() && now - it.next().getValue() > windowMs) {
+				it.remove();
+			}
+			if (seen.containsKey(key)) {
+				duplicates.incrementAndGet();
+				return true;
+			}
+			seen.put(key, now);
+			if (seen.size() > maxEntries) {
+				it = seen.entrySet().iterator();
+				it.next();
+				it.remove();
+			}
+			return false;
+		}
+	}
+
+	long getDuplicates() {
+		return duplicates.get();
+	}
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * An ontology instance received from SOFIA2, in a callback or in the result of a query.
+ *
+ * The instance is parsed once, when it is received. The tokens are kept for the translator, which
+ * replays them instead of parsing the JSON text again (see {@link #parser()}). The values used to route
+ * the instance (_id, contextData.timestamp and the attributes of its ontology) are taken while the tokens
+ * are read, so that lanes, conflation, the watchdog, the duplicate filter and the multiplexer
+ * do not parse the instance either. Only the first two levels of the document are inspected.
+ */
+final class Sofia2Instance {
+	private static final JsonFactory factory = new JsonFactory();
+
+	private final TokenBuffer tokens = new TokenBuffer(null, false);
+	private int size; // UTF-8 bytes of the JSON text
+	private String objectId; // _id.$oid
+	private String timestamp; // contextData.timestamp
+	private final Map<String, Map<String, String>> attributes = new LinkedHashMap<String, Map<String, String>>(); // ontName -> attribute values
+
+	private Sofia2Instance() {
+	}
+
+	/**
+	 * Parses the JSON text of an instance.
+	 *
+	 * @throws IOException if the text is not a JSON document
+	 */
+	static Sofia2Instance parse(String data) throws IOException {
+		try (JsonParser parser = factory.createParser(data.getBytes(StandardCharsets.UTF_8))) {
+			parser.nextToken();
+			return read(parser);
+		}
+	}
+
+	/**
+	 * Reads a JSON value. If it is not an object, the instance has no routing values.
+	 *
+	 * The size of the instance is measured in bytes if the parser reads bytes, and in characters otherwise.
+	 *
+	 * @param parser a parser on the first token of the value. It is left on the last token of the value
+	 */
+	static Sofia2Instance read(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == null) throw new JsonParseException(parser, "Invalid SOFIA2 instance: no data");
+		Sofia2Instance instance = new Sofia2Instance();
+		JsonLocation start = parser.getTokenLocation();
+		if (parser.getCurrentToken() == JsonToken.START_OBJECT) instance.readObject(parser);
+		else instance.tokens.copyCurrentStructure(parser);
+		JsonLocation end = parser.getCurrentLocation();
+		instance.size = (int) (start.getByteOffset() >= 0 ? end.getByteOffset() - start.getByteOffset()
+				: end.getCharOffset() - start.getCharOffset());
+		return instance;
+	}
+
+	private void readObject(JsonParser parser) throws IOException {
+		tokens.copyCurrentEvent(parser);
+		while (nextToken(parser) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				tokens.copyCurrentStructure(parser);
+			} else if (name.equals("_id")) {
+				objectId = readField(parser, "$oid");
+			} else if (name.equals("contextData")) {
+				timestamp = readTimestamp(parser);
+			} else {
+				Map<String, String> values = new HashMap<String, String>();
+				tokens.copyCurrentEvent(parser);
+				while (nextToken(parser) == JsonToken.FIELD_NAME) {
+					String attribute = parser.getCurrentName();
+					parser.nextToken();
+					String value = scalar(parser);
+					if (value != null) values.put(attribute, value);
+					tokens.copyCurrentStructure(parser);
+				}
+				attributes.put(name, values);
+			}
+		}
+	}
+
+	// Moves to the next token and keeps it
+	private JsonToken nextToken(JsonParser parser) throws IOException {
+		JsonToken token = parser.nextToken();
+		if (token == null) throw new JsonParseException(parser, "Invalid SOFIA2 instance: unexpected end of data");
+		tokens.copyCurrentEvent(parser);
+		return token;
+	}
+
+	// Reads an object and returns the value of one of its scalar fields
+	private String readField(JsonParser parser, String fieldName) throws IOException {
+		String value = null;
+		tokens.copyCurrentEvent(parser);
+		while (nextToken(parser) == JsonToken.FIELD_NAME) {
+			boolean found = parser.getCurrentName().equals(fieldName);
+			parser.nextToken();
+			if (found) value = scalar(parser);
+			tokens.copyCurrentStructure(parser);
+		}
+		return value;
+	}
+
+	// contextData.timestamp is either {"$date":...} or a plain value
+	private String readTimestamp(JsonParser parser) throws IOException {
+		String value = null;
+		tokens.copyCurrentEvent(parser);
+		while (nextToken(parser) == JsonToken.FIELD_NAME) {
+			boolean found = parser.getCurrentName().equals("timestamp");
+			JsonToken token = parser.nextToken();
+			if (found && token == JsonToken.START_OBJECT) {
+				value = readField(parser, "$date");
+			} else {
+				if (found) value = scalar(parser);
+				tokens.copyCurrentStructure(parser);
+			}
+		}
+		return value;
+	}
+
+	// @return the text of the current value, or null if it is not a string, number or boolean
+	private static String scalar(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_STRING:
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			return parser.getText();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return a parser that replays the tokens of the instance, for the translator
+	 */
+	JsonParser parser() {
+		return tokens.asParser();
+	}
+
+	/**
+	 * @return the size in UTF-8 bytes of the JSON text of the instance, as it was received
+	 */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * Writes the tokens of the instance as JSON text, e.g. for the logs. The text is built on every call.
+	 *
+	 * @return the JSON text of the instance, without the whitespace it was received with
+	 */
+	String getData() {
+		StringWriter data = new StringWriter();
+		try (JsonGenerator generator = factory.createGenerator(data)) {
+			tokens.serialize(generator);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Not thrown by a StringWriter
+		}
+		return data.toString();
+	}
+
+	/**
+	 * @return the $oid of the _id of the instance, or null
+	 */
+	String getObjectId() {
+		return objectId;
+	}
+
+	/**
+	 * @return contextData.timestamp ($date), or null
+	 */
+	String getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Identifies an instance by its _id and its contextData timestamp.
+	 *
+	 * @return "oid@timestamp", or null if the instance lacks one of them
+	 */
+	String getInstanceKey() {
+		return objectId != null && timestamp != null ? objectId + "@" + timestamp : null;
+	}
+
+	/**
+	 * @return the value of the identifier field of an ontology, or null if the instance does not have it.
+	 *         Devices identified by "_id" use the $oid of the instance.
+	 */
+	String getIdentifier(String ontName, String fieldName) {
+		if (fieldName.equals("_id")) return objectId;
+		Map<String, String> values = attributes.get(ontName);
+		return values != null ? values.get(fieldName) : null;
+	}
+
+	/**
+	 * Returns the device of the instance as "ontName/idValue".
+	 * identifierFields maps ontology names to the name of their identifier field.
+	 *
+	 * @return null if the identifier of the instance is unknown
+	 */
+	String getDeviceKey(Map<String, String> identifierFields) {
+		for (Map.Entry<String, Map<String, String>> ontology : attributes.entrySet()) {
+			String fieldName = identifierFields.get(ontology.getKey());
+			if (fieldName == null) continue;
+			String id = fieldName.equals("_id") ? objectId : ontology.getValue().get(fieldName);
+			if (id != null) return ontology.getKey() + "/" + id;
+		}
+		return null;
+	}
+
+}
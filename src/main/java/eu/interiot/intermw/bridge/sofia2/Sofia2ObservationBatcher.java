@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the translated observations of each conversation and publishes them as one message.
+ *
+ * A group is published when it reaches batchSize observations or batchWindow ms after
+ * its first observation, whatever happens first. Larger values mean fewer messages
+ * (higher throughput) but observations wait longer before they are published.
+ *
+ * Batches can be published by the lane workers (full batches) and by the timer (expired batches).
+ * The batches of a conversation are published in the order they were created: each batch waits
+ * until the previous batch of the conversation has been published, so observations of the same
+ * device never overtake each other.
+ */
+class Sofia2ObservationBatcher {
+	private final Logger logger = LoggerFactory.getLogger(Sofia2ObservationBatcher.class);
+	private final int batchSize;
+	private final long batchWindow;
+	private final BatchPublisher publisher;
+	private final Map<String, Batch> batches = new HashMap<String, Batch>(); // Latest batch of each conversation, until it is published
+	private final ScheduledExecutorService timer;
+
+	private final AtomicLong batchedObservations = new AtomicLong();
+	private final AtomicLong publishedBatches = new AtomicLong();
+
+	/**
+	 * Publishes the combined model of a group of observations.
+	 */
+	interface BatchPublisher {
+		void publish(String conversationId, Model observations) throws Exception;
+	}
+
+	private static class Batch {
+		final Model model = ModelFactory.createDefaultModel();
+		int size;
+		boolean closed; // No more observations are added. Guarded by batches
+		private Batch previous; // Batch of the same conversation that must be published first
+		private boolean published;
+
+		Batch(Batch previous) {
+			this.previous = previous;
+		}
+
+		void awaitPrevious() throws InterruptedException {
+			if (previous == null) return;
+			synchronized (previous) {
+				while (!previous.published) previous.wait();
+			}
+			previous = null;
+		}
+
+		synchronized void published() {
+			published = true;
+			notifyAll();
+		}
+	}
+
+	Sofia2ObservationBatcher(int batchSize, long batchWindow, BatchPublisher publisher) {
+		this.batchSize = batchSize;
+		this.batchWindow = batchWindow;
+		this.publisher = publisher;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-batcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return null if batching is disabled (observation-batch-size is 1 or less)
+	 */
+	static Sofia2ObservationBatcher create(Properties properties, BatchPublisher publisher) {
+		int batchSize = Integer.valueOf(properties.getProperty("observation-batch-size", "1"));
+		long batchWindow = Long.valueOf(properties.getProperty("observation-batch-window", "20"));
+		if (batchSize <= 1) return null;
+		return new Sofia2ObservationBatcher(batchSize, batchWindow, publisher);
+	}
+
+	void add(String conversationId, Model observation) throws Exception {
+		Batch full = null;
+		synchronized (batches) {
+			Batch batch = batches.get(conversationId);
+			if (batch == null || batch.closed) {
+				Batch newBatch = new Batch(batch);
+				batches.put(conversationId, newBatch);
+				if (!timer.isShutdown()) timer.schedule(() -> flush(conversationId, newBatch), batchWindow, TimeUnit.MILLISECONDS);
+				batch = newBatch;
+			}
+			batch.model.add(observation);
+			batch.size++;
+			if (batch.size >= batchSize || timer.isShutdown()) { // After shutdown, observations are published at once
+				batch.closed = true;
+				full = batch;
+			}
+		}
+		batchedObservations.incrementAndGet();
+		if (full != null) publish(conversationId, full);
+	}
+
+	/**
+	 * Publishes the pending observations of all conversations.
+	 */
+	void flushAll() {
+		List<Map.Entry<String, Batch>> pending = new ArrayList<Map.Entry<String, Batch>>();
+		synchronized (batches) {
+			for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+				if (entry.getValue().closed) continue; // Being published
+				entry.getValue().closed = true;
+				pending.add(entry);
+			}
+		}
+		for (Map.Entry<String, Batch> entry : pending) {
+			try {
+				publish(entry.getKey(), entry.getValue());
+			} catch (Exception e) {
+				logger.error("Error publishing observations of conversation " + entry.getKey() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Publishes the pending observations. Observations added later are published one by one.
+	 */
+	void shutdown() {
+		synchronized (batches) {
+			timer.shutdown();
+		}
+		flushAll();
+	}
+
+	// Called by the timer. The batch may have already been published because it was full
+	private void flush(String conversationId, Batch batch) {
+		synchronized (batches) {
+			if (batch.closed) return;
+			batch.closed = true;
+		}
+		try {
+			publish(conversationId, batch);
+		} catch (Exception e) {
+			logger.error("Error publishing observations of conversation " + conversationId + ": " + e.getMessage());
+		}
+	}
+
+	private void publish(String conversationId, Batch batch) throws Exception {
+		try {
+			batch.awaitPrevious();
+			publishedBatches.incrementAndGet();
+			logger.debug("Publishing {} observations of conversation {} in one message.", batch.size, conversationId);
+			publisher.publish(conversationId, batch.model);
+		} finally {
+			batch.published();
+			synchronized (batches) {
+				batches.remove(conversationId, batch); // Unless a newer batch has been created
+			}
+		}
+	}
+
+	long getBatchedObservations() {
+		return batchedObservations.get();
+	}
+
+	long getPublishedBatches() {
+		return publishedBatches.get();
+	}
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples the reception of SOFIA2 callbacks from their processing.
+ *
+ * The data of the callbacks is put in a bounded queue and the HTTP request is answered at once.
+ * Observations are partitioned by device into lanes, each one with its own queue and worker thread,
+ * which translates the observations and publishes them upstream. Observations of different devices are
+ * processed in parallel, while those of the same device are published in the order they were received.
+ * Observations of unknown devices are partitioned by conversation.
+ * When the queue of a lane is full, new observations are rejected (policy "reject", the callback is answered
+ * with an error code) or the oldest queued observation of the lane is dropped (policy "drop-oldest").
+ *
+ * Admission is also limited by the number and size of the observations in flight (queued or being
+ * processed). Once a limit is exceeded, new observations are throttled until the load goes below
+ * RESUME_THRESHOLD of both limits, so the bridge does not switch on and off with every callback.
+ *
+ * In conflation mode, observations with the same key (conversation and device) are not queued twice.
+ * If a newer observation arrives before the previous one has been taken by a worker, it replaces it,
+ * so only the latest value of each device is published.
+ *
+ * On shutdown, new observations are rejected and the workers keep processing the queued ones
+ * for up to SHUTDOWN_TIMEOUT ms. The observations still queued after that are dropped.
+ */
+class Sofia2ObservationPipeline {
+	static final String REJECT = "reject";
+	static final String DROP_OLDEST = "drop-oldest";
+	private static final double RESUME_THRESHOLD = 0.8;
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+	private static final long POLL_INTERVAL = 100; // Idle workers check whether the pipeline is shutting down
+
+	enum Admission {
+		ACCEPTED,
+		THROTTLED, // Over the in-flight budget
+		REJECTED // Queue full
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2ObservationPipeline.class);
+	private final List<BlockingQueue<Observation>> lanes = new ArrayList<BlockingQueue<Observation>>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final ObservationProcessor processor;
+	private final DeviceKey deviceKey; // Null if observations are neither partitioned nor conflated
+	private final boolean conflation;
+	private final Map<String, Observation> latest = new HashMap<String, Observation>(); // Queued observation of each key
+	private final boolean dropOldest;
+	private final int maxInFlight;
+	private final long maxInFlightBytes;
+	private final int retryAfter;
+	private volatile boolean running = true; // False once the pipeline stops accepting observations
+	private volatile boolean stopped = false; // True once the workers must stop, even with observations queued
+	private volatile boolean throttling = false;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong inFlightBytes = new AtomicLong();
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Translates and publishes one observation.
+	 */
+	interface ObservationProcessor {
+		void process(String conversationId, Sofia2Instance observation) throws Exception;
+	}
+
+	/**
+	 * Identifies the device of an observation, for partitioning and conflation.
+	 */
+	interface DeviceKey {
+		/**
+		 * @return the device, or null if it is unknown
+		 */
+		String keyOf(String conversationId, Sofia2Instance observation);
+	}
+
+	private static class Observation {
+		final String conversationId;
+		final Sofia2Instance body;
+		final String key; // Conflation key
+		final int lane;
+
+		Observation(String conversationId, Sofia2Instance body, String key, int lane) {
+			this.conversationId = conversationId;
+			this.body = body;
+			this.key = key;
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * @param queueSize total size of the queues, shared evenly among the lanes
+	 * @param laneCount number of lanes (and worker threads)
+	 * @param conflation if true, only the latest queued observation of each device is kept
+	 */
+	Sofia2ObservationPipeline(int queueSize, int laneCount, String overflowPolicy, int maxInFlight, long maxInFlightBytes,
+			int retryAfter, ObservationProcessor processor, DeviceKey deviceKey, boolean conflation) {
+		this.processor = processor;
+		this.deviceKey = laneCount > 1 || conflation ? deviceKey : null;
+		this.conflation = conflation;
+		this.dropOldest = overflowPolicy.equals(DROP_OLDEST);
+		this.maxInFlight = maxInFlight;
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.retryAfter = retryAfter;
+		int laneSize = Math.max(1, (queueSize + laneCount - 1) / laneCount);
+		for (int i = 0; i < laneCount; i++) {
+			BlockingQueue<Observation> lane = new ArrayBlockingQueue<Observation>(laneSize);
+			lanes.add(lane);
+			Thread worker = new Thread(() -> work(lane), "sofia2-observations-" + (i + 1));
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	static Sofia2ObservationPipeline create(Properties properties, ObservationProcessor processor, DeviceKey deviceKey) {
+		int queueSize = Integer.valueOf(properties.getProperty("callback-queue-size", "10000"));
+		int laneCount = Integer.valueOf(properties.getProperty("callback-workers", "4"));
+		String overflowPolicy = properties.getProperty("callback-queue-overflow", REJECT);
+		int maxInFlight = Integer.valueOf(properties.getProperty("callback-max-in-flight", String.valueOf(queueSize)));
+		long maxInFlightBytes = Long.valueOf(properties.getProperty("callback-max-in-flight-bytes", "67108864"));
+		int retryAfter = Integer.valueOf(properties.getProperty("callback-retry-after", "1"));
+		boolean conflation = Boolean.valueOf(properties.getProperty("observation-conflation", "false"));
+		return new Sofia2ObservationPipeline(queueSize, laneCount, overflowPolicy, maxInFlight, maxInFlightBytes, retryAfter,
+				processor, deviceKey, conflation);
+	}
+
+	/**
+	 * Queues an observation without blocking.
+	 * The device is taken from the values read when the observation was received, so the observation
+	 * is not parsed on the thread that received it.
+	 */
+	Admission offer(String conversationId, Sofia2Instance body) {
+		if (!running) {
+			rejected.incrementAndGet();
+			logger.debug("Observation pipeline is shutting down. Observation of conversation {} rejected.", conversationId);
+			return Admission.REJECTED;
+		}
+		int size = body.getSize();
+		if (overBudget(size)) {
+			throttled.incrementAndGet();
+			logger.debug("Too many observations in flight. Observation of conversation {} throttled.", conversationId);
+			return Admission.THROTTLED;
+		}
+		String device = deviceKey != null ? deviceKey.keyOf(conversationId, body) : null;
+		String key = conflation && device != null ? conversationId + " " + device : null;
+		Observation observation = new Observation(conversationId, body, key, laneOf(device != null ? device : conversationId));
+		inFlight.incrementAndGet();
+		inFlightBytes.addAndGet(size);
+		if (observation.key == null) return enqueue(observation);
+
+		synchronized (latest) {
+			Observation previous = latest.put(observation.key, observation);
+			if (previous != null) {
+				// The queued entry of this key now refers to the new observation
+				release(previous);
+				conflated.incrementAndGet();
+				accepted.incrementAndGet();
+				return Admission.ACCEPTED;
+			}
+			Admission admission = enqueue(observation);
+			if (admission == Admission.REJECTED) latest.remove(observation.key);
+			return admission;
+		}
+	}
+
+	private int laneOf(String partition) {
+		int hash = partition.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), lanes.size());
+	}
+
+	private Admission enqueue(Observation observation) {
+		BlockingQueue<Observation> queue = lanes.get(observation.lane);
+		while (!queue.offer(observation)) {
+			if (!dropOldest) {
+				release(observation);
+				rejected.incrementAndGet();
+				logger.debug("Observation queue {} is full. Observation of conversation {} rejected.", observation.lane, observation.conversationId);
+				return Admission.REJECTED;
+			}
+			Observation oldest = queue.poll();
+			if (oldest != null) {
+				discard(oldest);
+				dropped.incrementAndGet();
+			}
+		}
+		accepted.incrementAndGet();
+		return Admission.ACCEPTED;
+	}
+
+	// Removes a queued observation, or the latest observation of its key if it has been conflated
+	private void discard(Observation queued) {
+		if (queued.key == null) {
+			release(queued);
+			return;
+		}
+		synchronized (latest) {
+			Observation current = latest.remove(queued.key);
+			if (current != null) release(current);
+		}
+	}
+
+	private boolean overBudget(int bodySize) {
+		int count = inFlight.get();
+		long bytes = inFlightBytes.get();
+		if (throttling) {
+			if (count > maxInFlight * RESUME_THRESHOLD || bytes > maxInFlightBytes * RESUME_THRESHOLD) return true;
+			throttling = false;
+			logger.info("Observation load is back to normal. Callbacks are accepted again.");
+		}
+		if (count + 1 > maxInFlight || bytes + bodySize > maxInFlightBytes) {
+			throttling = true;
+			logger.warn("Observation load over budget ({} observations, {} bytes in flight). Callbacks are throttled.", count, bytes);
+			return true;
+		}
+		return false;
+	}
+
+	private void release(Observation observation) {
+		inFlight.decrementAndGet();
+		inFlightBytes.addAndGet(-observation.body.getSize());
+	}
+
+	private void work(BlockingQueue<Observation> queue) {
+		while (!stopped) {
+			Observation observation;
+			try {
+				observation = running ? queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS) : queue.poll();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (observation == null) {
+				if (running) continue;
+				break; // Drained
+			}
+			if (observation.key != null) {
+				synchronized (latest) {
+					observation = latest.remove(observation.key);
+				}
+				if (observation == null) continue; // Already discarded
+			}
+			try {
+				processor.process(observation.conversationId, observation.body);
+				processed.incrementAndGet();
+			} catch (Throwable e) {
+				// Errors are caught too, so that the lane keeps its worker
+				failed.incrementAndGet();
+				logger.error("Error processing observation of conversation " + observation.conversationId + ": " + e.getMessage());
+			} finally {
+				release(observation);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting observations and waits up to SHUTDOWN_TIMEOUT ms for the workers to process the queued ones.
+	 * Then the workers are interrupted, and the observations still queued are dropped.
+	 */
+	void shutdown() {
+		running = false;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		try {
+			for (Thread worker : workers) {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stopped = true;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		long discarded = 0;
+		for (BlockingQueue<Observation> lane : lanes) {
+			Observation queued;
+			while ((queued = lane.poll()) != null) {
+				discard(queued);
+				discarded++;
+			}
+		}
+		if (discarded > 0) {
+			dropped.addAndGet(discarded);
+			logger.warn("Observation pipeline stopped with {} observations queued. They have been dropped.", discarded);
+		}
+	}
+
+	/**
+	 * @return seconds that SOFIA2 should wait before retrying a throttled or rejected callback
+	 */
+	int getRetryAfter() {
+		return retryAfter;
+	}
+
+	int getQueueDepth() {
+		int depth = 0;
+		for (BlockingQueue<Observation> lane : lanes) {
+			depth += lane.size();
+		}
+		return depth;
+	}
+
+	int getInFlight() {
+		return inFlight.get();
+	}
+
+	long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+
+	long getThrottled() {
+		return throttled.get();
+	}
+
+	long getAccepted() {
+		return accepted.get();
+	}
+
+	long getRejected() {
+		return rejected.get();
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	long getConflated() {
+		return conflated.get();
+	}
+
+	long getProcessed() {
+		return processed.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import eu.interiot.intermw.bridge.sofia2.Sofia2CallbackDispatcher.CallbackResult;
+import eu.interiot.intermw.bridge.sofia2.Sofia2SubscriptionMultiplexer.ObservationTarget;
+
+/**
+ * Receives observations by polling SOFIA2 instead of subscribing, for SIBs that cannot reach the callback URL.
+ *
+ * Each ontology with subscribed devices is polled with one native query for the instances whose
+ * contextData.timestamp is not older than the watermark of the ontology (the timestamp of the last
+ * instance delivered). Results are requested in timestamp order, in pages of pageSize instances.
+ * The ids of the instances delivered at the watermark timestamp are remembered, so instances that
+ * share a timestamp are neither lost nor delivered twice.
+ *
+ * Instances follow the same path as the data received in callbacks.
+ * If an instance is not accepted (queue full or throttled), the poll stops there and is resumed later.
+ * The conversations that accepted it are remembered, so that the instance is only delivered again
+ * to the rest.
+ *
+ * The poll interval of each ontology adapts to its load: it is halved when new instances are found
+ * and grows by half when there are none, between minInterval and maxInterval ms.
+ * Watermarks can be saved in a file, so that polling resumes where it stopped when the bridge is restarted.
+ */
+class Sofia2Poller {
+	private final Logger logger = LoggerFactory.getLogger(Sofia2Poller.class);
+	private final Sofia2Client client;
+	private final ObservationTarget target;
+	private final int pageSize;
+	private final long minInterval;
+	private final long maxInterval;
+	private final Path watermarkFile; // Null if watermarks are not saved
+	private final ScheduledExecutorService scheduler;
+
+	private final Map<String, Poll> polls = new HashMap<String, Poll>(); // ontName -> poll
+	private final Map<String, List<String[]>> conversations = new HashMap<String, List<String[]>>(); // conversation -> thingIds
+	private final Properties watermarks = new Properties(); // ontName -> "timestamp id1,id2..."
+
+	private final AtomicLong polledInstances = new AtomicLong();
+	private final AtomicLong pollQueries = new AtomicLong();
+
+	private static class Poll {
+		final String ontName;
+		final Map<String, String> fields = new HashMap<String, String>(); // ontName -> identifier field, for Sofia2Instance#getDeviceKey
+		final Map<String, Set<String>> devices = new HashMap<String, Set<String>>(); // "ontName/idValue" -> conversations
+		ScheduledFuture<?> task;
+		long interval;
+		String watermark; // Timestamp of the last instance delivered
+		Set<String> delivered = new HashSet<String>(); // Ids of the instances delivered with the watermark timestamp
+		String pendingInstance; // Instance key of the instance that was not accepted by all its conversations
+		final Set<String> pendingConversations = new HashSet<String>(); // Conversations that accepted the pending instance
+
+		Poll(String ontName, long interval) {
+			this.ontName = ontName;
+			this.interval = interval;
+		}
+	}
+
+	// Stops a poll when an instance is not accepted
+	private static class Backpressure extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int retryAfter;
+
+		Backpressure(int retryAfter) {
+			super(null, null, false, false);
+			this.retryAfter = retryAfter;
+		}
+	}
+
+	Sofia2Poller(Sofia2Client client, ObservationTarget target, int pageSize, long minInterval, long maxInterval, int threads,
+			Path watermarkFile) throws IOException {
+		this.client = client;
+		this.target = target;
+		this.pageSize = pageSize;
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.watermarkFile = watermarkFile;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-poller-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (watermarkFile != null && Files.exists(watermarkFile)) {
+			try (InputStream in = Files.newInputStream(watermarkFile)) {
+				watermarks.load(in);
+			}
+			logger.info("{} poll watermarks loaded from {}.", watermarks.size(), watermarkFile);
+		}
+	}
+
+	static Sofia2Poller create(Properties properties, Sofia2Client client, ObservationTarget target) throws IOException {
+		int pageSize = Integer.valueOf(properties.getProperty("poll-page-size", "100"));
+		long minInterval = Long.valueOf(properties.getProperty("poll-min-interval", "1000"));
+		long maxInterval = Long.valueOf(properties.getProperty("poll-max-interval", "30000"));
+		int threads = Integer.valueOf(properties.getProperty("poll-threads", "2"));
+		String file = properties.getProperty("poll-watermarks", "").trim();
+		return new Sofia2Poller(client, target, pageSize, minInterval, maxInterval, threads, file.isEmpty() ? null : Paths.get(file));
+	}
+
+	/**
+	 * Adds the devices of a conversation, starting to poll their ontologies if needed.
+	 * Each thingId is {ontName, idName, idValue}, as returned by {@link Sofia2Utils#filterThingID(String)}.
+	 */
+	synchronized void subscribe(String conversationId, List<String[]> thingIds) {
+		List<String[]> subscribed = conversations.get(conversationId);
+		if (subscribed == null) {
+			subscribed = new ArrayList<String[]>();
+			conversations.put(conversationId, subscribed);
+		}
+		for (String[] thingId : thingIds) {
+			Poll poll = polls.get(thingId[0]);
+			if (poll == null) {
+				poll = new Poll(thingId[0], minInterval);
+				restoreWatermark(poll);
+				polls.put(poll.ontName, poll);
+				schedule(poll, 0);
+				logger.debug("Polling ontology {}.", poll.ontName);
+			}
+			poll.fields.put(thingId[0], thingId[1]);
+			String deviceKey = thingId[0] + "/" + thingId[2];
+			Set<String> subscribers = poll.devices.get(deviceKey);
+			if (subscribers == null) {
+				subscribers = new LinkedHashSet<String>();
+				poll.devices.put(deviceKey, subscribers);
+			}
+			subscribers.add(conversationId);
+			subscribed.add(thingId);
+		}
+	}
+
+	/**
+	 * Removes the devices of a conversation. Ontologies without devices are no longer polled and their watermarks are forgotten.
+	 */
+	synchronized void unsubscribe(String conversationId) {
+		List<String[]> subscribed = conversations.remove(conversationId);
+		if (subscribed == null) return;
+		for (String[] thingId : subscribed) {
+			Poll poll = polls.get(thingId[0]);
+			if (poll == null) continue;
+			String deviceKey = thingId[0] + "/" + thingId[2];
+			Set<String> subscribers = poll.devices.get(deviceKey);
+			if (subscribers != null) {
+				subscribers.remove(conversationId);
+				if (subscribers.isEmpty()) poll.devices.remove(deviceKey);
+			}
+			if (poll.devices.isEmpty()) {
+				polls.remove(poll.ontName);
+				poll.task.cancel(false);
+				watermarks.remove(poll.ontName);
+				saveWatermarks();
+				logger.debug("Ontology {} is no longer polled.", poll.ontName);
+			}
+		}
+	}
+
+	/**
+	 * Stops all polls. Saved watermarks are kept.
+	 */
+	synchronized void clear() {
+		for (Poll poll : polls.values()) {
+			poll.task.cancel(false);
+		}
+		polls.clear();
+		conversations.clear();
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	synchronized int getPollCount() {
+		return polls.size();
+	}
+
+	long getPolledInstances() {
+		return polledInstances.get();
+	}
+
+	long getPollQueries() {
+		return pollQueries.get();
+	}
+
+	private void schedule(Poll poll, long delay) {
+		poll.task = scheduler.schedule(() -> poll(poll), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll(Poll poll) {
+		long delay;
+		try {
+			int[] found = new int[1];
+			if (poll.watermark == null) {
+				initWatermark(poll);
+			} else {
+				// Instances already delivered with the watermark timestamp are returned again, so the page is enlarged to skip them
+				int limit;
+				do {
+					limit = pageSize + poll.delivered.size();
+				} while (pollPage(poll, limit, found) == limit);
+			}
+			// Poll again sooner if the ontology is receiving data
+			poll.interval = found[0] > 0 ? Math.max(minInterval, poll.interval / 2) : Math.min(maxInterval, poll.interval + poll.interval / 2);
+			delay = poll.interval;
+			if (found[0] > 0) {
+				logger.debug("{} new instances of ontology {}. Next poll in {} ms.", found[0], poll.ontName, delay);
+				saveWatermark(poll);
+			}
+		} catch (Backpressure e) {
+			saveWatermark(poll);
+			delay = Math.max(minInterval, e.retryAfter * 1000L);
+		} catch (Exception e) {
+			logger.warn("Error polling ontology " + poll.ontName + ": " + e.getMessage());
+			delay = poll.interval = maxInterval;
+		}
+		synchronized (this) {
+			if (polls.get(poll.ontName) == poll) schedule(poll, delay);
+		}
+	}
+
+	// Without a saved watermark, polling starts after the most recent instance. Older instances are not delivered
+	private void initWatermark(Poll poll) throws Exception {
+		String query = "db." + poll.ontName + ".find().sort({\"contextData.timestamp\":-1}).limit(1)";
+		pollQueries.incrementAndGet();
+		client.find(poll.ontName, query, instance -> {
+			if (instance.getTimestamp() != null) advance(poll, instance.getTimestamp(), instance.getObjectId());
+		});
+		if (poll.watermark == null) poll.watermark = ""; // Empty ontology. Every instance is new
+	}
+
+	/**
+	 * @return the number of instances returned by SOFIA2 (including those already delivered)
+	 */
+	private int pollPage(Poll poll, int limit, int[] found) throws Exception {
+		String filter = "";
+		if (!poll.watermark.isEmpty()) {
+			JsonObject date = new JsonObject();
+			date.addProperty("$date", poll.watermark);
+			JsonObject condition = new JsonObject();
+			condition.add("$gte", date);
+			JsonObject query = new JsonObject();
+			query.add("contextData.timestamp", condition);
+			filter = query.toString();
+		}
+		String query = "db." + poll.ontName + ".find(" + filter + ").sort({\"contextData.timestamp\":1}).limit(" + limit + ")";
+		pollQueries.incrementAndGet();
+		return client.find(poll.ontName, query, instance -> {
+			String timestamp = instance.getTimestamp();
+			String id = instance.getObjectId();
+			if (timestamp != null && timestamp.equals(poll.watermark) && poll.delivered.contains(id)) return;
+			deliver(poll, instance);
+			found[0]++;
+			polledInstances.incrementAndGet();
+			if (timestamp != null) advance(poll, timestamp, id);
+		});
+	}
+
+	private void deliver(Poll poll, Sofia2Instance instance) throws Exception {
+		List<String> subscribers;
+		synchronized (this) {
+			String deviceKey = instance.getDeviceKey(poll.fields);
+			Set<String> conversationIds = deviceKey != null ? poll.devices.get(deviceKey) : null;
+			if (conversationIds == null) return; // No conversation subscribed to this device
+			subscribers = new ArrayList<String>(conversationIds);
+		}
+		String instanceKey = instance.getInstanceKey();
+		if (instanceKey == null || !instanceKey.equals(poll.pendingInstance)) {
+			poll.pendingInstance = instanceKey;
+			poll.pendingConversations.clear();
+		}
+		for (String conversationId : subscribers) {
+			if (poll.pendingConversations.contains(conversationId)) continue; // Accepted in an earlier poll
+			CallbackResult result = target.deliver(conversationId, instance);
+			if (result.status != 200) throw new Backpressure(result.retryAfter);
+			poll.pendingConversations.add(conversationId);
+		}
+		poll.pendingInstance = null;
+		poll.pendingConversations.clear();
+	}
+
+	private static void advance(Poll poll, String timestamp, String id) {
+		if (!timestamp.equals(poll.watermark)) {
+			poll.watermark = timestamp;
+			poll.delivered = new HashSet<String>();
+		}
+		if (id != null) poll.delivered.add(id);
+	}
+
+	private void restoreWatermark(Poll poll) {
+		String saved;
+		synchronized (watermarks) {
+			saved = watermarks.getProperty(poll.ontName);
+		}
+		if (saved == null) return;
+		String[] parts = saved.split(" ", 2);
+		poll.watermark = parts[0];
+		if (parts.length > 1 && !parts[1].isEmpty()) poll.delivered.addAll(Arrays.asList(parts[1].split(",")));
+	}
+
+	private void saveWatermark(Poll poll) {
+		if (poll.watermark == null || poll.watermark.isEmpty()) return;
+		synchronized (watermarks) {
+			watermarks.setProperty(poll.ontName, poll.watermark + " " + String.join(",", poll.delivered));
+		}
+		saveWatermarks();
+	}
+
+	// The file is replaced atomically, so a crash leaves either the old or the new watermarks
+	private void saveWatermarks() {
+		if (watermarkFile == null) return;
+		synchronized (watermarks) {
+			Path temp = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+			try {
+				try (OutputStream out = Files.newOutputStream(temp)) {
+					watermarks.store(out, "SOFIA2 bridge poll watermarks");
+				}
+				Files.move(temp, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				logger.warn("Error saving poll watermarks: " + e.getMessage());
+			}
+		}
+	}
+
+}
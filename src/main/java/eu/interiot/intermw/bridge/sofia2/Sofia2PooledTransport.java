@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Reuses keep-alive connections from a bounded pool.
+ * Idle connections are evicted by a background thread of the HTTP client.
+ */
+class Sofia2PooledTransport implements Sofia2Transport {
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+
+	Sofia2PooledTransport(int maxConnections, int maxPerRoute, int connectTimeout, int readTimeout,
+			int idleTimeout, int keepAlive, SSLContext sslContext) {
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", sslContext != null ? new SSLConnectionSocketFactory(sslContext) : SSLConnectionSocketFactory.getSocketFactory())
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(2000); // Check stale connections before reusing them
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.setConnectionRequestTimeout(connectTimeout) // Time waiting for a free connection in the pool
+				.build();
+
+		// Use the Keep-Alive header of the server, or the configured value if there is none
+		ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? duration : keepAlive;
+		};
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	@Override
+	public <T> T execute(String method, String url, String body, Map<String, String> headers, ResponseReader<T> responseReader) throws Exception {
+		RequestBuilder request = RequestBuilder.create(method).setUri(url);
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.addHeader(header.getKey(), header.getValue());
+			}
+		}
+		if (body != null) {
+			request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(request.build())) {
+			int responseCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (responseCode < 200 || responseCode > 299) {
+				EntityUtils.consume(entity); // Release the connection
+				throw new Sofia2HttpException(responseCode);
+			}
+			if (entity == null) {
+				return responseReader.read(new StringReader(""));
+			}
+			try (Reader reader = new BufferedReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8))) {
+				return responseReader.read(reader);
+			} finally {
+				EntityUtils.consume(entity); // Read the rest of the body so that the connection can be reused
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+		connectionManager.close();
+	}
+
+}
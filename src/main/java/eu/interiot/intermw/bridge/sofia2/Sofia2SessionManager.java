@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the SSAP session of a client alive.
+ *
+ * After the first join, the session is refreshed every refreshInterval ms (session-refresh),
+ * which must be shorter than the session expiry time of the SIB.
+ * If a request is rejected because the session is no longer valid, {@link #rejoin(String)} joins again.
+ * Only one thread joins: the others wait for it and then use the new session key.
+ */
+class Sofia2SessionManager {
+	private final Logger logger = LoggerFactory.getLogger(Sofia2SessionManager.class);
+	private final Joiner joiner;
+	private final long refreshInterval;
+	private final ScheduledExecutorService scheduler;
+	private volatile String sessionKey;
+	private boolean active; // Between join() and leave()
+	private ScheduledFuture<?> refresh;
+
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong rejoins = new AtomicLong();
+
+	/**
+	 * Sends a SSAP JOIN request.
+	 */
+	interface Joiner {
+		/**
+		 * @param currentKey key of the session to refresh, or null to open a new session
+		 * @return the new session key
+		 */
+		String join(String currentKey) throws Exception;
+	}
+
+	/**
+	 * Sends a SSAP LEAVE request.
+	 */
+	interface Leaver {
+		void leave(String sessionKey) throws Exception;
+	}
+
+	Sofia2SessionManager(Joiner joiner, long refreshInterval) {
+		this.joiner = joiner;
+		this.refreshInterval = refreshInterval;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-session");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Checks whether a request failed because its session key is no longer valid.
+	 */
+	static boolean isSessionError(Throwable error) {
+		if (!(error instanceof Sofia2HttpException)) return false;
+		int status = ((Sofia2HttpException) error).getStatusCode();
+		return status == 401 || status == 403;
+	}
+
+	String getSessionKey() {
+		return sessionKey;
+	}
+
+	/**
+	 * Opens the session (or refreshes it, if it is already open) and starts the periodic refresh.
+	 */
+	synchronized void join() throws Exception {
+		sessionKey = joiner.join(sessionKey);
+		active = true;
+		if (refresh == null && refreshInterval > 0) {
+			refresh = scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Joins again after a request has been rejected with expiredKey.
+	 * If another thread has already joined again, its key is returned without sending a new JOIN.
+	 *
+	 * @return the key to repeat the request with
+	 */
+	synchronized String rejoin(String expiredKey) throws Exception {
+		if (!active) throw new IllegalStateException("SOFIA2 session is closed");
+		if (!Objects.equals(expiredKey, sessionKey)) return sessionKey; // Already renewed
+		logger.info("SOFIA2 session has expired. Joining again...");
+		sessionKey = joiner.join(null);
+		rejoins.incrementAndGet();
+		return sessionKey;
+	}
+
+	/**
+	 * Stops the refresh and closes the session.
+	 */
+	synchronized void leave(Leaver leaver) throws Exception {
+		if (refresh != null) {
+			refresh.cancel(false);
+			refresh = null;
+		}
+		active = false;
+		String closedKey = sessionKey;
+		sessionKey = null;
+		leaver.leave(closedKey);
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	long getRefreshes() {
+		return refreshes.get();
+	}
+
+	long getRejoins() {
+		return rejoins.get();
+	}
+
+	private synchronized void refresh() {
+		if (!active) return;
+		try {
+			sessionKey = joiner.join(sessionKey);
+			refreshes.incrementAndGet();
+		} catch (Exception e) {
+			// The session may have expired already. Open a new one
+			logger.warn("Error refreshing SOFIA2 session: " + e.getMessage());
+			try {
+				sessionKey = joiner.join(null);
+				rejoins.incrementAndGet();
+			} catch (Exception ex) {
+				logger.error("Error joining SOFIA2: " + ex.getMessage() + ". Retrying in " + refreshInterval + " ms.");
+			}
+		}
+	}
+
+}
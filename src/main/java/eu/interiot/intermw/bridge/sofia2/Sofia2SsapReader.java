@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the instance data of a SSAP message with a streaming parser, without loading the whole message in memory.
+ *
+ * SOFIA2 sends instance data as a JSON document encoded inside a string field,
+ * e.g. {"sessionKey":"...","data":"[{\"_id\":...}]"}. The string is decoded when it is reached
+ * and its contents are read, as UTF-8 bytes, by a parser of their own. Values that are not strings are read
+ * by the parser of the envelope, up to the end of the value.
+ */
+final class Sofia2SsapReader {
+	private static final JsonFactory factory = new JsonFactory();
+
+	private Sofia2SsapReader() {
+	}
+
+	/**
+	 * Moves to the value of a top-level field of a JSON object.
+	 * If the value is a string, the returned parser reads the JSON document encoded in the string.
+	 *
+	 * @return a parser on the first token of the value, or null if the field is not present or it is null
+	 */
+	static JsonParser field(Reader json, String name) throws IOException {
+		return field(factory.createParser(json), name);
+	}
+
+	// The parser is on the START_OBJECT token of the object, or before it
+	private static JsonParser field(JsonParser json, String name) throws IOException {
+		JsonToken token = json.getCurrentToken() != null ? json.getCurrentToken() : json.nextToken();
+		if (token != JsonToken.START_OBJECT) throw new JsonParseException(json, "Unexpected SSAP message: JSON object expected");
+		while (json.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = json.getCurrentName();
+			token = json.nextToken();
+			if (!fieldName.equals(name)) {
+				json.skipChildren();
+			} else if (token == JsonToken.VALUE_NULL) {
+				return null;
+			} else if (token == JsonToken.VALUE_STRING) {
+				// Parsed from bytes, so the size of the instances is measured in UTF-8 bytes
+				JsonParser value = factory.createParser(json.getText().getBytes(StandardCharsets.UTF_8));
+				return value.nextToken() != null ? value : null;
+			} else {
+				return json;
+			}
+		}
+		if (json.getCurrentToken() != JsonToken.END_OBJECT) throw new JsonParseException(json, "Unexpected end of SSAP message");
+		return null;
+	}
+
+	/**
+	 * Extracts the instance data of a SOFIA2 indication.
+	 * The SSAP body is an object in LEGACY messages and a JSON-encoded string otherwise.
+	 * The instance is read once: its routing values and its tokens are taken in the same pass
+	 * (see {@link Sofia2Instance#read(JsonParser)}).
+	 *
+	 * @param indication a UTF-8 encoded SSAP indication message
+	 * @return the instance data, or null if the indication has no data
+	 */
+	static Sofia2Instance observation(InputStream indication) throws IOException {
+		try (JsonParser envelope = factory.createParser(indication)) {
+			JsonParser body = field(envelope, "body");
+			if (body == null) return null;
+			JsonParser data = field(body, "data");
+			if (data == null) return null;
+			return Sofia2Instance.read(data);
+		}
+	}
+
+	/**
+	 * Receives each element of an array.
+	 */
+	interface ElementHandler {
+		void handle(Sofia2Instance element) throws Exception;
+	}
+
+	/**
+	 * Reads the elements of a JSON array one by one.
+	 * Each element is passed to the handler as soon as it has been read, so the array is never held in memory.
+	 *
+	 * @param array a parser returned by {@link #field(Reader, String)}, or null
+	 * @return the number of elements
+	 */
+	static int elements(JsonParser array, ElementHandler handler) throws Exception {
+		if (array == null) return 0;
+		if (array.getCurrentToken() != JsonToken.START_ARRAY) throw new JsonParseException(array, "Unexpected SSAP message: JSON array expected");
+		int count = 0;
+		while (array.nextToken() != JsonToken.END_ARRAY) {
+			handler.handle(Sofia2Instance.read(array));
+			count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Append-only journal of the subscriptions of the bridge, kept in a memory-mapped file.
+ *
+ * Each record is a 4-byte length followed by a UTF-8 JSON object:
+ * {"op":"subscribe","conversationId":...,"deviceIds":[...],"subscriptionIds":[...],"callback":...}
+ * or {"op":"unsubscribe","conversationId":...}. A zero length marks the end of the journal.
+ * When the journal holds many more records than active conversations, it is compacted:
+ * the active conversations are written to a new file that replaces the old one.
+ * It is also compacted periodically if it holds any record of an inactive conversation,
+ * so that a journal with few changes does not keep them until the bridge is restarted.
+ */
+class Sofia2SubscriptionJournal implements Closeable {
+	private static final int INITIAL_SIZE = 1 << 20;
+	private static final int MIN_COMPACTION_RECORDS = 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2SubscriptionJournal.class);
+	private final Path path;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int records;
+	private final ScheduledExecutorService compactor; // Null if the journal is not compacted periodically
+
+	/**
+	 * Subscriptions of one conversation.
+	 */
+	static class Entry {
+		final String conversationId;
+		final List<String> deviceIds;
+		final List<String> subscriptionIds;
+		final String callback;
+
+		Entry(String conversationId, List<String> deviceIds, List<String> subscriptionIds, String callback) {
+			this.conversationId = conversationId;
+			this.deviceIds = Collections.unmodifiableList(new ArrayList<String>(deviceIds));
+			this.subscriptionIds = Collections.unmodifiableList(new ArrayList<String>(subscriptionIds));
+			this.callback = callback;
+		}
+	}
+
+	Sofia2SubscriptionJournal(Path path) throws IOException {
+		this(path, 0);
+	}
+
+	/**
+	 * @param compactionInterval period (in ms) of the compaction checks, 0 to compact only when records are added
+	 */
+	Sofia2SubscriptionJournal(Path path, long compactionInterval) throws IOException {
+		this.path = path;
+		if (Files.exists(path)) {
+			map(Math.max(INITIAL_SIZE, Files.size(path)));
+			load();
+			compact(); // Start with a clean journal
+		} else {
+			map(INITIAL_SIZE);
+		}
+		if (compactionInterval > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "sofia2-journal");
+				thread.setDaemon(true);
+				return thread;
+			});
+			compactor.scheduleWithFixedDelay(this::compactIfStale, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+		} else {
+			compactor = null;
+		}
+	}
+
+	/**
+	 * @return null if the journal is disabled (no subscription-journal file)
+	 */
+	static Sofia2SubscriptionJournal create(Properties properties) throws IOException {
+		String file = properties.getProperty("subscription-journal");
+		if (file == null || file.trim().isEmpty()) return null;
+		long compactionInterval = Long.valueOf(properties.getProperty("subscription-journal-compaction", "3600000"));
+		return new Sofia2SubscriptionJournal(Paths.get(file.trim()), compactionInterval);
+	}
+
+	/**
+	 * Active subscriptions, in subscription order.
+	 */
+	synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	synchronized void subscribed(String conversationId, List<String> deviceIds, List<String> subscriptionIds, String callback) throws IOException {
+		Entry entry = new Entry(conversationId, deviceIds, subscriptionIds, callback);
+		entries.put(conversationId, entry);
+		append(toJson(entry));
+	}
+
+	/**
+	 * Replaces the subscription ids of a conversation, keeping its devices and callback.
+	 */
+	synchronized void updateSubscriptionIds(String conversationId, List<String> subscriptionIds) throws IOException {
+		Entry entry = entries.get(conversationId);
+		if (entry == null) return;
+		subscribed(conversationId, entry.deviceIds, subscriptionIds, entry.callback);
+	}
+
+	synchronized void unsubscribed(String conversationId) throws IOException {
+		if (entries.remove(conversationId) == null) return;
+		JsonObject record = new JsonObject();
+		record.addProperty("op", "unsubscribe");
+		record.addProperty("conversationId", conversationId);
+		append(record);
+	}
+
+	synchronized void clear() throws IOException {
+		entries.clear();
+		compact();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (compactor != null) compactor.shutdownNow();
+		release(buffer);
+		buffer = null;
+		channel.close();
+	}
+
+	// Periodic check: compacts the journal if it holds records that are no longer needed
+	private synchronized void compactIfStale() {
+		if (buffer == null || records <= entries.size()) return;
+		try {
+			compact();
+		} catch (IOException e) {
+			logger.warn("Subscription journal {} could not be compacted: {}", path, e.getMessage());
+		}
+	}
+
+	private void append(JsonObject record) throws IOException {
+		byte[] data = record.toString().getBytes(StandardCharsets.UTF_8);
+		if (buffer.remaining() < data.length + 8) { // Record and end mark
+			int position = buffer.position();
+			map(Math.max(buffer.capacity() * 2L, position + data.length + 8L));
+			buffer.position(position);
+		}
+		int start = buffer.position();
+		buffer.putInt(0); // The length is written last, so an interrupted write looks like the end of the journal
+		buffer.put(data);
+		buffer.putInt(0);
+		buffer.putInt(start, data.length);
+		buffer.position(buffer.position() - 4);
+		records++;
+		if (records > Math.max(MIN_COMPACTION_RECORDS, entries.size() * 2)) compact();
+	}
+
+	private void load() {
+		buffer.position(0);
+		while (buffer.remaining() >= 4) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining()) {
+				buffer.position(start);
+				break;
+			}
+			byte[] data = new byte[length];
+			buffer.get(data);
+			try {
+				JsonParser parser = new JsonParser();
+				replay(parser.parse(new String(data, StandardCharsets.UTF_8)).getAsJsonObject());
+				records++;
+			} catch (Exception e) {
+				logger.warn("Invalid record in subscription journal {}. The rest of the journal is ignored.", path);
+				buffer.position(start);
+				break;
+			}
+		}
+	}
+
+	private void replay(JsonObject record) {
+		String conversationId = record.get("conversationId").getAsString();
+		if (record.get("op").getAsString().equals("unsubscribe")) {
+			entries.remove(conversationId);
+			return;
+		}
+		JsonElement callback = record.get("callback");
+		entries.put(conversationId, new Entry(conversationId, toList(record.getAsJsonArray("deviceIds")),
+				toList(record.getAsJsonArray("subscriptionIds")), callback != null && !callback.isJsonNull() ? callback.getAsString() : null));
+	}
+
+	private void compact() throws IOException {
+		Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (Entry entry : entries.values()) {
+				byte[] data = toJson(entry).toString().getBytes(StandardCharsets.UTF_8);
+				ByteBuffer record = ByteBuffer.allocate(data.length + 4);
+				record.putInt(data.length).put(data).flip();
+				while (record.hasRemaining()) out.write(record);
+			}
+			out.force(true);
+		}
+		release(buffer); // The file is not replaced while it is mapped
+		buffer = null;
+		channel.close();
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		long size = Files.size(path);
+		map(Math.max(INITIAL_SIZE, size * 2));
+		buffer.position((int) size);
+		records = entries.size();
+		logger.debug("Subscription journal {} compacted: {} active conversations.", path, records);
+	}
+
+	// Maps the journal file, growing it to the given size. The new space is filled with zeros
+	private void map(long size) throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		MappedByteBuffer previous = buffer;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		if (previous != null) release(previous);
+	}
+
+	/**
+	 * Writes a mapping to the file and unmaps it, instead of waiting for the garbage collector to do it.
+	 * The buffer must not be used afterwards.
+	 * MappedByteBuffer has no unmap method: the cleaner of the buffer is invoked through sun.misc.Unsafe
+	 * (Java 9 and later) or DirectBuffer.cleaner() (Java 8). If neither is available, the mapping is left to the GC.
+	 */
+	private void release(MappedByteBuffer mapping) {
+		mapping.force();
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), mapping);
+			} catch (NoSuchMethodException e) {
+				Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(mapping);
+				if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			logger.debug("Mapping of subscription journal {} left to the garbage collector: {}", path, e.toString());
+		}
+	}
+
+	private static JsonObject toJson(Entry entry) {
+		JsonObject record = new JsonObject();
+		record.addProperty("op", "subscribe");
+		record.addProperty("conversationId", entry.conversationId);
+		record.add("deviceIds", toArray(entry.deviceIds));
+		record.add("subscriptionIds", toArray(entry.subscriptionIds));
+		record.addProperty("callback", entry.callback);
+		return record;
+	}
+
+	private static JsonArray toArray(List<String> values) {
+		JsonArray array = new JsonArray();
+		for (String value : values) {
+			array.add(value);
+		}
+		return array;
+	}
+
+	private static List<String> toList(JsonArray array) {
+		List<String> values = new ArrayList<String>();
+		if (array == null) return values;
+		for (JsonElement value : array) {
+			values.add(value.getAsString());
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.interiot.intermw.bridge.sofia2.Sofia2CallbackDispatcher.CallbackResult;
+
+/**
+ * Shares one SOFIA2 subscription among all the devices of an ontology.
+ *
+ * Devices are grouped by ontology and identifier field. Each group has one subscription whose
+ * query selects the identifiers of its devices with an $in filter, so SOFIA2 only sends the
+ * instances of subscribed devices. Indications are delivered to the conversations subscribed
+ * to the device of the instance. When devices are added to or removed from a group, the subscription
+ * is replaced by one with the new filter. The new subscription is created before the old one is removed,
+ * so no indication is lost in between. The subscription is removed when no conversation
+ * is subscribed to any device of the group.
+ *
+ * Requests to SOFIA2 are sent through the async client, outside the lock of the groups,
+ * so indications keep being delivered while a subscription is changed. The changes of a group
+ * are chained and run one after the other. A change that finds the filter already up to date
+ * (e.g. because an earlier change included the same devices) does not contact SOFIA2.
+ */
+class Sofia2SubscriptionMultiplexer {
+	private static final int PARTIAL_DELIVERIES = 1024; // Instances per group whose delivery is remembered until SOFIA2 retries them
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2SubscriptionMultiplexer.class);
+	private final Sofia2AsyncClient client;
+	private final Sofia2CallbackDispatcher dispatcher;
+	private final URL callbackBaseUrl;
+	private final String keyPrefix;
+	private final ObservationTarget target;
+
+	private final Map<String, Group> groups = new HashMap<String, Group>(); // "ontName/idName" -> group
+	private final Map<String, List<String[]>> conversations = new HashMap<String, List<String[]>>(); // conversation -> thingIds
+
+	/**
+	 * Receives the indications of one conversation.
+	 */
+	interface ObservationTarget {
+		CallbackResult deliver(String conversationId, Sofia2Instance observation) throws Exception;
+	}
+
+	private static class Group {
+		final String ontName;
+		final String fieldName;
+		final String callback;
+		// Last change of the subscription. Completed with the id of the subscription when SOFIA2 has answered
+		CompletableFuture<String> subscription = CompletableFuture.completedFuture(null);
+		// Written by the changes of the subscription, which run one after the other
+		String subscriptionId;
+		Set<String> filter = Collections.emptySet();
+		// Written under the lock of the multiplexer, read without it by fanOut
+		final Map<String, Set<String>> devices = new ConcurrentHashMap<String, Set<String>>(); // id value -> conversations
+		// Conversations that accepted an instance that other conversations rejected. SOFIA2 sends it again
+		final Map<String, Set<String>> partialDeliveries = new LinkedHashMap<String, Set<String>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+				return size() > PARTIAL_DELIVERIES;
+			}
+		};
+
+		Group(String ontName, String fieldName, String callback) {
+			this.ontName = ontName;
+			this.fieldName = fieldName;
+			this.callback = callback;
+		}
+
+		int references() {
+			int references = 0;
+			for (Set<String> subscribers : devices.values()) {
+				references += subscribers.size();
+			}
+			return references;
+		}
+	}
+
+	/**
+	 * @param keyPrefix distinguishes the callback endpoints of the bridges that share the dispatcher
+	 */
+	Sofia2SubscriptionMultiplexer(Sofia2AsyncClient client, Sofia2CallbackDispatcher dispatcher, URL callbackBaseUrl,
+			String keyPrefix, ObservationTarget target) {
+		this.client = client;
+		this.dispatcher = dispatcher;
+		this.callbackBaseUrl = callbackBaseUrl;
+		this.keyPrefix = keyPrefix;
+		this.target = target;
+	}
+
+	/**
+	 * Adds the devices of a conversation, subscribing to their ontologies if needed.
+	 * Each thingId is {ontName, idName, idValue}, as returned by {@link Sofia2Utils#filterThingID(String)}.
+	 * Returns when SOFIA2 has answered the subscriptions of all the groups of the devices.
+	 * The devices of the groups whose subscription failed are removed.
+	 */
+	void subscribe(String conversationId, List<String[]> thingIds) throws Exception {
+		Map<String, CompletableFuture<String>> pending = new LinkedHashMap<String, CompletableFuture<String>>();
+		synchronized (this) {
+			List<String[]> subscribed = conversations.get(conversationId);
+			if (subscribed == null) {
+				subscribed = new ArrayList<String[]>();
+				conversations.put(conversationId, subscribed);
+			}
+			Set<Group> changed = new LinkedHashSet<Group>();
+			for (String[] thingId : thingIds) {
+				String groupKey = thingId[0] + "/" + thingId[1];
+				Group group = groups.get(groupKey);
+				if (group == null) {
+					String callbackKey = keyPrefix + thingId[0] + "-" + thingId[1];
+					group = new Group(thingId[0], thingId[1], new URL(callbackBaseUrl, Sofia2CallbackDispatcher.CALLBACK_PATH + callbackKey).toString());
+					Group newGroup = group;
+					dispatcher.register(callbackKey, observation -> fanOut(newGroup, observation));
+					groups.put(groupKey, group);
+				}
+				Set<String> subscribers = group.devices.get(thingId[2]);
+				if (subscribers == null) {
+					subscribers = ConcurrentHashMap.newKeySet();
+					group.devices.put(thingId[2], subscribers);
+					changed.add(group);
+				}
+				subscribers.add(conversationId);
+				subscribed.add(thingId);
+			}
+			for (Group group : changed) {
+				resubscribe(group);
+			}
+			// Devices that were already in a group may still wait for a change requested by another conversation
+			for (String[] thingId : thingIds) {
+				String groupKey = thingId[0] + "/" + thingId[1];
+				pending.put(groupKey, groups.get(groupKey).subscription);
+			}
+		}
+
+		Exception failure = null;
+		for (Map.Entry<String, CompletableFuture<String>> entry : pending.entrySet()) {
+			try {
+				String subscriptionId = entry.getValue().join();
+				logger.debug("Subscribed to ontology {} with subscription {}.", entry.getKey(), subscriptionId);
+			} catch (CompletionException e) {
+				removeDevices(entry.getKey(), conversationId);
+				if (failure == null) failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Chains a change of the subscription of a group. Called with the lock held.
+	 * The filter is taken from the devices of the group when the change runs. If the new subscription
+	 * fails, the previous one is kept.
+	 */
+	private CompletableFuture<String> resubscribe(Group group) {
+		group.subscription = group.subscription
+				.handle((subscriptionId, error) -> null)
+				.thenCompose(ignored -> {
+					Set<String> filter = new HashSet<String>(group.devices.keySet());
+					if (filter.isEmpty() || filter.equals(group.filter)) return CompletableFuture.completedFuture(group.subscriptionId);
+					return client.subscribe(group.ontName, group.fieldName, filter, group.callback).thenCompose(subscriptionId -> {
+						String replaced = group.subscriptionId;
+						group.subscriptionId = subscriptionId;
+						group.filter = filter;
+						if (replaced == null) return CompletableFuture.completedFuture(subscriptionId);
+						return client.unsubscribe(replaced).handle((response, error) -> {
+							if (error != null) logger.warn("Error removing subscription " + replaced + " to ontology " + group.ontName + ": " + error.getMessage());
+							return subscriptionId;
+						});
+					});
+				});
+		return group.subscription;
+	}
+
+	/**
+	 * Chains the removal of the subscription of a group that has no devices. Called with the lock held.
+	 */
+	private CompletableFuture<String> remove(String groupKey, Group group) {
+		groups.remove(groupKey);
+		dispatcher.unregister(keyPrefix + group.ontName + "-" + group.fieldName);
+		group.subscription = group.subscription
+				.handle((subscriptionId, error) -> null)
+				.thenCompose(ignored -> {
+					String subscriptionId = group.subscriptionId;
+					group.subscriptionId = null;
+					group.filter = Collections.emptySet();
+					return subscriptionId != null ? client.unsubscribe(subscriptionId) : CompletableFuture.completedFuture(null);
+				});
+		return group.subscription;
+	}
+
+	// Removes the devices that a conversation has in a group whose subscription failed
+	private synchronized void removeDevices(String groupKey, String conversationId) {
+		Group group = groups.get(groupKey);
+		List<String[]> subscribed = conversations.get(conversationId);
+		if (group == null || subscribed == null) return;
+		for (Iterator<String[]> it = subscribed.iterator(); it.hasNext(); ) {
+			String[] thingId = it.next();
+			if (!thingId[0].equals(group.ontName) || !thingId[1].equals(group.fieldName)) continue;
+			it.remove();
+			Set<String> subscribers = group.devices.get(thingId[2]);
+			if (subscribers != null) {
+				subscribers.remove(conversationId);
+				if (subscribers.isEmpty()) group.devices.remove(thingId[2]);
+			}
+		}
+		if (subscribed.isEmpty()) conversations.remove(conversationId);
+		if (group.references() == 0) {
+			remove(groupKey, group).whenComplete((response, error) -> {
+				if (error != null) logger.warn("Error removing the subscription to ontology " + groupKey + ": " + error.getMessage());
+			});
+		}
+	}
+
+	/**
+	 * Removes the devices of a conversation. The subscriptions of the groups that lose devices are replaced,
+	 * and those without devices are cancelled.
+	 */
+	void unsubscribe(String conversationId) throws Exception {
+		Map<String, CompletableFuture<String>> changes = new LinkedHashMap<String, CompletableFuture<String>>();
+		synchronized (this) {
+			List<String[]> subscribed = conversations.remove(conversationId);
+			if (subscribed == null) return;
+			Map<String, Group> changed = new LinkedHashMap<String, Group>();
+			for (String[] thingId : subscribed) {
+				String groupKey = thingId[0] + "/" + thingId[1];
+				Group group = groups.get(groupKey);
+				if (group == null) continue;
+				Set<String> subscribers = group.devices.get(thingId[2]);
+				if (subscribers != null) {
+					subscribers.remove(conversationId);
+					if (subscribers.isEmpty()) {
+						group.devices.remove(thingId[2]);
+						changed.put(groupKey, group);
+					}
+				}
+				if (group.references() == 0) {
+					changed.remove(groupKey);
+					changes.put(groupKey, remove(groupKey, group));
+				}
+			}
+			for (Map.Entry<String, Group> entry : changed.entrySet()) {
+				changes.put(entry.getKey(), resubscribe(entry.getValue()));
+			}
+		}
+
+		Sofia2BatchResult<String> result = Sofia2BatchResult.join(changes);
+		for (String groupKey : result.getResults().keySet()) {
+			logger.debug("Subscription to ontology {} has been changed.", groupKey);
+		}
+		result.checkFailures("Unsubscribe");
+	}
+
+	/**
+	 * Forgets all subscriptions without contacting SOFIA2 (they are lost when the session ends).
+	 */
+	synchronized void clear() {
+		for (Group group : groups.values()) {
+			dispatcher.unregister(keyPrefix + group.ontName + "-" + group.fieldName);
+		}
+		groups.clear();
+		conversations.clear();
+	}
+
+	synchronized int getSubscriptionCount() {
+		return groups.size();
+	}
+
+	/**
+	 * Delivers an indication to the conversations subscribed to its device.
+	 * If a conversation rejects it, SOFIA2 is asked to send it again. The conversations that
+	 * accepted it are remembered by instance key, and do not receive it a second time.
+	 */
+	private CallbackResult fanOut(Group group, Sofia2Instance observation) throws Exception {
+		String idValue = observation.getIdentifier(group.ontName, group.fieldName);
+		Set<String> conversationIds = idValue != null ? group.devices.get(idValue) : null;
+		if (conversationIds == null) return CallbackResult.OK; // No conversation subscribed to this device
+		String instanceKey = observation.getInstanceKey();
+		Set<String> accepted;
+		synchronized (group.partialDeliveries) {
+			accepted = instanceKey != null ? group.partialDeliveries.remove(instanceKey) : null;
+		}
+		if (accepted == null) accepted = new HashSet<String>();
+		CallbackResult result = CallbackResult.OK;
+		for (String conversationId : conversationIds) {
+			if (accepted.contains(conversationId)) continue;
+			CallbackResult delivery = target.deliver(conversationId, observation);
+			if (delivery.status == 200) accepted.add(conversationId);
+			else result = delivery;
+		}
+		if (result.status != 200 && instanceKey != null) {
+			synchronized (group.partialDeliveries) {
+				group.partialDeliveries.put(instanceKey, accepted);
+			}
+		}
+		return result;
+	}
+
+}
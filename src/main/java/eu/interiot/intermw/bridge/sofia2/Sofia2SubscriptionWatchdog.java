@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects device subscriptions that SOFIA2 has stopped serving and subscribes them again.
+ *
+ * The time between indications of each subscription is learned as a moving average.
+ * A subscription is stale when it has been silent for silenceFactor times its average interval
+ * (and at least minSilence ms). Subscriptions are not checked until MIN_SAMPLES intervals have been
+ * observed, as a device may legitimately never send observations.
+ * Stale subscriptions are resubscribed after a random delay of up to jitter ms, one at a time,
+ * so that many subscriptions lost at once (e.g. an expired session) do not hit SOFIA2 at the same time.
+ */
+class Sofia2SubscriptionWatchdog {
+	private static final int MIN_SAMPLES = 3;
+	private static final double ALPHA = 0.2; // Weight of the last interval in the average
+	private static final long MIN_CHECK_PERIOD = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(Sofia2SubscriptionWatchdog.class);
+	private final double silenceFactor;
+	private final long minSilence;
+	private final long jitter;
+	private final Resubscriber resubscriber;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>(); // "conversationId ont/value" -> watch
+
+	private final AtomicLong resubscriptions = new AtomicLong();
+	private final AtomicLong failedResubscriptions = new AtomicLong();
+
+	/**
+	 * Subscribes a device again and replaces the stale subscription.
+	 */
+	interface Resubscriber {
+		/**
+		 * @return the new subscription id, or null if the conversation is no longer subscribed
+		 */
+		String resubscribe(String conversationId, String[] thingId, String staleSubscriptionId) throws Exception;
+	}
+
+	private static class Watch {
+		final String conversationId;
+		final String[] thingId; // {ontName, idName, idValue}
+		volatile String subscriptionId;
+		volatile long lastIndication;
+		volatile double meanInterval;
+		volatile int samples;
+		volatile boolean resubscribing;
+
+		Watch(String conversationId, String[] thingId, String subscriptionId) {
+			this.conversationId = conversationId;
+			this.thingId = thingId;
+			this.subscriptionId = subscriptionId;
+			this.lastIndication = System.currentTimeMillis();
+		}
+	}
+
+	Sofia2SubscriptionWatchdog(double silenceFactor, long minSilence, long jitter, Resubscriber resubscriber) {
+		this.silenceFactor = silenceFactor;
+		this.minSilence = minSilence;
+		this.jitter = jitter;
+		this.resubscriber = resubscriber;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sofia2-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long checkPeriod = Math.max(MIN_CHECK_PERIOD, minSilence / 10);
+		scheduler.scheduleWithFixedDelay(this::check, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return null if the watchdog is disabled (subscription-watchdog is false)
+	 */
+	static Sofia2SubscriptionWatchdog create(Properties properties, Resubscriber resubscriber) {
+		boolean enabled = Boolean.valueOf(properties.getProperty("subscription-watchdog", "false"));
+		double silenceFactor = Double.valueOf(properties.getProperty("subscription-watchdog-factor", "5"));
+		long minSilence = Long.valueOf(properties.getProperty("subscription-watchdog-min-silence", "60000"));
+		long jitter = Long.valueOf(properties.getProperty("subscription-watchdog-jitter", "30000"));
+		if (!enabled) return null;
+		return new Sofia2SubscriptionWatchdog(silenceFactor, minSilence, jitter, resubscriber);
+	}
+
+	/**
+	 * Starts watching the subscription of a device.
+	 * The thingId is {ontName, idName, idValue}, as returned by {@link Sofia2Utils#filterThingID(String)}.
+	 */
+	void watch(String conversationId, String[] thingId, String subscriptionId) {
+		watches.put(key(conversationId, thingId[0] + "/" + thingId[2]), new Watch(conversationId, thingId, subscriptionId));
+	}
+
+	/**
+	 * Stops watching the subscriptions of a conversation.
+	 */
+	void unwatch(String conversationId) {
+		Iterator<Watch> it = watches.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().conversationId.equals(conversationId)) it.remove();
+		}
+	}
+
+	void clear() {
+		watches.clear();
+	}
+
+	/**
+	 * Records an indication of a device.
+	 *
+	 * @param deviceKey "ont/value", as returned by {@link Sofia2Instance#getDeviceKey}
+	 */
+	void indication(String conversationId, String deviceKey) {
+		if (deviceKey == null) return;
+		Watch watch = watches.get(key(conversationId, deviceKey));
+		if (watch == null) return;
+		long now = System.currentTimeMillis();
+		synchronized (watch) {
+			long interval = now - watch.lastIndication;
+			watch.meanInterval = watch.samples == 0 ? interval : ALPHA * interval + (1 - ALPHA) * watch.meanInterval;
+			watch.samples++;
+			watch.lastIndication = now;
+		}
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	int getWatchCount() {
+		return watches.size();
+	}
+
+	long getResubscriptions() {
+		return resubscriptions.get();
+	}
+
+	long getFailedResubscriptions() {
+		return failedResubscriptions.get();
+	}
+
+	private void check() {
+		long now = System.currentTimeMillis();
+		List<Watch> stale = new ArrayList<Watch>();
+		for (Watch watch : watches.values()) {
+			if (watch.resubscribing || watch.samples < MIN_SAMPLES) continue;
+			long silence = now - watch.lastIndication;
+			if (silence > Math.max(minSilence, silenceFactor * watch.meanInterval)) stale.add(watch);
+		}
+		for (Watch watch : stale) {
+			watch.resubscribing = true;
+			long delay = jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0;
+			logger.info("Subscription {} of conversation {} has been silent for {} ms. Resubscribing in {} ms.", watch.subscriptionId,
+					watch.conversationId, now - watch.lastIndication, delay);
+			scheduler.schedule(() -> resubscribe(watch), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void resubscribe(Watch watch) {
+		try {
+			if (watches.get(key(watch.conversationId, watch.thingId[0] + "/" + watch.thingId[2])) != watch) return; // Unsubscribed meanwhile
+			String subscriptionId = resubscriber.resubscribe(watch.conversationId, watch.thingId, watch.subscriptionId);
+			if (subscriptionId != null) {
+				logger.debug("Subscription {} of conversation {} replaced by {}.", watch.subscriptionId, watch.conversationId, subscriptionId);
+				watch.subscriptionId = subscriptionId;
+				resubscriptions.incrementAndGet();
+			}
+		} catch (Exception e) {
+			failedResubscriptions.incrementAndGet();
+			logger.warn("Error resubscribing subscription " + watch.subscriptionId + " of conversation " + watch.conversationId + ": " + e.getMessage());
+		} finally {
+			// Wait for another silence period before checking it again. The learned interval is kept
+			watch.lastIndication = System.currentTimeMillis();
+			watch.resubscribing = false;
+		}
+	}
+
+	private static String key(String conversationId, String deviceKey) {
+		return conversationId + " " + deviceKey;
+	}
+
+}
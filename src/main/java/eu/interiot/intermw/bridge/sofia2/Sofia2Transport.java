@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.Closeable;
+import java.io.Reader;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * HTTP transport used by {@link Sofia2Client} to reach the SOFIA2 REST API.
+ *
+ * The transport is selected with the "http-transport" property:
+ * - pooled (default): keep-alive connections taken from a bounded pool
+ * - url-connection: one HttpURLConnection per request
+ */
+interface Sofia2Transport extends Closeable {
+
+	String POOLED = "pooled";
+	String URL_CONNECTION = "url-connection";
+
+	/**
+	 * Reads a response body while it is being received.
+	 */
+	interface ResponseReader<T> {
+		T read(Reader response) throws Exception;
+	}
+
+	/**
+	 * Sends a request and passes the response body to responseReader.
+	 * If body is not null, it is sent as UTF-8 encoded JSON.
+	 *
+	 * @throws Sofia2HttpException if the server does not return a 2xx code
+	 */
+	<T> T execute(String method, String url, String body, Map<String, String> headers, ResponseReader<T> responseReader) throws Exception;
+
+	/**
+	 * Sends a request and returns the response body.
+	 */
+	default String execute(String method, String url, String body, Map<String, String> headers) throws Exception {
+		return execute(method, url, body, headers, response -> {
+			StringBuilder content = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = response.read(buffer)) != -1) {
+				content.append(buffer, 0, read);
+			}
+			return content.toString();
+		});
+	}
+
+	static Sofia2Transport create(Properties properties, SSLContext sslContext) {
+		int connectTimeout = Integer.valueOf(properties.getProperty("http-connect-timeout", "10000"));
+		int readTimeout = Integer.valueOf(properties.getProperty("http-read-timeout", "30000"));
+		String type = properties.getProperty("http-transport", POOLED);
+
+		if (type.equals(URL_CONNECTION)) {
+			return new Sofia2UrlConnectionTransport(connectTimeout, readTimeout);
+		}
+		int maxConnections = Integer.valueOf(properties.getProperty("http-max-connections", "50"));
+		int maxPerRoute = Integer.valueOf(properties.getProperty("http-max-connections-per-route", "20"));
+		int idleTimeout = Integer.valueOf(properties.getProperty("http-idle-timeout", "60000"));
+		int keepAlive = Integer.valueOf(properties.getProperty("http-keep-alive", "30000"));
+		return new Sofia2PooledTransport(maxConnections, maxPerRoute, connectTimeout, readTimeout, idleTimeout, keepAlive, sslContext);
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Opens a new HttpURLConnection for every request.
+ * HTTPS connections use the default SSL socket factory set by {@link Sofia2Client}.
+ */
+class Sofia2UrlConnectionTransport implements Sofia2Transport {
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	Sofia2UrlConnectionTransport(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public <T> T execute(String method, String url, String body, Map<String, String> headers, ResponseReader<T> responseReader) throws Exception {
+		URL obj = new URL(url);
+		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+		try {
+			con.setConnectTimeout(connectTimeout);
+			con.setReadTimeout(readTimeout);
+			con.setDoInput(true);
+			con.setUseCaches(false);
+			con.setRequestMethod(method);
+			if (headers != null) {
+				for (Map.Entry<String, String> header : headers.entrySet()) {
+					con.setRequestProperty(header.getKey(), header.getValue());
+				}
+			}
+			if (body != null) {
+				byte[] postData = body.getBytes(StandardCharsets.UTF_8);
+				con.setDoOutput(true);
+				con.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+				con.setRequestProperty("Content-Length", Integer.toString(postData.length));
+				try (OutputStream os = con.getOutputStream()) {
+					os.write(postData);
+					os.flush();
+				}
+			}
+			int responseCode = con.getResponseCode();
+
+			if (responseCode < 200 || responseCode > 299) {
+				throw new Sofia2HttpException(responseCode);
+			}
+
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
+				return responseReader.read(in);
+			}
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release
+	}
+
+}
@@ -20,6 +20,7 @@ package eu.interiot.intermw.bridge.sofia2;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -139,6 +140,46 @@ public class Sofia2Utils {
 		return filteredString;
 	}
     
+    /**
+     * Groups the devices by ontology and identifier name (key "ontName/idName").
+     * Each group maps the identifier values to the original device ids.
+     * Devices without an identifier are added to the result as failures.
+     */
+    static Map<String, Map<String, String>> groupThingIds(List<IoTDevice> devices, Sofia2BatchResult<?> result) {
+    	Map<String, Map<String, String>> groups = new LinkedHashMap<String, Map<String, String>>();
+    	for (IoTDevice iotDevice : devices) {
+    		String thingId[] = filterThingID(iotDevice.getDeviceId());
+    		if (thingId.length < 3) {
+    			result.failure(iotDevice.getDeviceId(), new BridgeException("Invalid device id"));
+    			continue;
+    		}
+    		String key = thingId[0] + "/" + thingId[1];
+    		if (!groups.containsKey(key)) groups.put(key, new LinkedHashMap<String, String>());
+    		groups.get(key).put(thingId[2], iotDevice.getDeviceId());
+    	}
+    	return groups;
+    }
+    
+    /**
+     * Translates the per-group results of a batch operation back to device ids.
+     */
+    static <T> void mergeGroupResults(Map<String, Map<String, String>> groups, Sofia2BatchResult<Sofia2BatchResult<T>> groupResults, Sofia2BatchResult<T> result) {
+    	for (Map.Entry<String, Throwable> failure : groupResults.getFailures().entrySet()) {
+    		for (String deviceId : groups.get(failure.getKey()).values()) {
+    			result.failure(deviceId, failure.getValue());
+    		}
+    	}
+    	for (Map.Entry<String, Sofia2BatchResult<T>> groupResult : groupResults.getResults().entrySet()) {
+    		Map<String, String> deviceIds = groups.get(groupResult.getKey());
+    		for (Map.Entry<String, T> success : groupResult.getValue().getResults().entrySet()) {
+    			result.success(deviceIds.get(success.getKey()), success.getValue());
+    		}
+    		for (Map.Entry<String, Throwable> failure : groupResult.getValue().getFailures().entrySet()) {
+    			result.failure(deviceIds.get(failure.getKey()), failure.getValue());
+    		}
+    	}
+    }
+    
     public static String getOntName(String data){
     	String ontName;
     	JsonParser parser = new JsonParser();
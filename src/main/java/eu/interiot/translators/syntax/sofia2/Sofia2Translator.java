@@ -19,28 +19,40 @@
 package eu.interiot.translators.syntax.sofia2;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.ValueNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import eu.interiot.intermw.bridge.sofia2.Sofia2Utils;
 import eu.interiot.translators.syntax.IllegalSyntaxException;
 import eu.interiot.translators.syntax.SyntacticTranslator;
 import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
-import org.apache.jena.query.*;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.RDF;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
 
 
+/**
+ * Syntactic translator between SOFIA2 JSON and RDF.
+ *
+ * Translators are thread-safe: the vocabulary and the JSON parsers are shared, and each translation
+ * only uses its own model. A single instance can be used for all the messages of a platform.
+ */
 public class Sofia2Translator extends SyntacticTranslator<String> {
 
     private String idURI;
@@ -70,34 +82,66 @@ public class Sofia2Translator extends SyntacticTranslator<String> {
     private String timezoneIdURI;
     /////////////////////////////////
     
-    private Property hasId;
-    private Property hasType;
+    public static String sofia2baseURI = "http://inter-iot.eu/syntax/SOFIA2#";
 
-    private Property hasValue;
-    private Property hasName;
-    private Property hasAttribute;
+    // Vocabulary, shared by all the translators
+    private static final Property hasId = ResourceFactory.createProperty(sofia2baseURI + "hasId");
+    private static final Property hasType = ResourceFactory.createProperty(sofia2baseURI + "hasType");
 
-    private Resource instanceType;
-    private Resource attributeType;
+    private static final Property hasValue = ResourceFactory.createProperty(sofia2baseURI + "hasValue");
+    private static final Property hasName = ResourceFactory.createProperty(sofia2baseURI + "hasName");
+    private static final Property hasAttribute = ResourceFactory.createProperty(sofia2baseURI + "hasAttribute");
 
-    private Resource arrayType;
-    private Resource elementType;
+    private static final Resource instanceType = ResourceFactory.createResource(sofia2baseURI + "Instance");
+    private static final Resource attributeType = ResourceFactory.createResource(sofia2baseURI + "Attribute");
+
+    private static final Resource arrayType = ResourceFactory.createResource(sofia2baseURI + "Array");
+    private static final Resource elementType = ResourceFactory.createResource(sofia2baseURI + "ArrayElement");
+
+    private static final Property hasElement = ResourceFactory.createProperty(sofia2baseURI + "hasElement");
+    private static final Property hasNumber = ResourceFactory.createProperty(sofia2baseURI + "hasNumber");
+    private static final Resource valueType = ResourceFactory.createResource(sofia2baseURI + "Value");
 
-    private Property hasElement;
-    private Property hasNumber;
-    private Resource valueType;
-    
     ///////////// CONTEXT DATA
-    private Property hasTimestamp;
-    private Property hasSessionKey;
-    private Property hasUser;
-    private Property hasKp;
-    private Property hasKpInstance;
-    private Property hasTimezoneId;
+    private static final Property hasTimestamp = ResourceFactory.createProperty(sofia2baseURI + "hasTimestamp");
+    private static final Property hasSessionKey = ResourceFactory.createProperty(sofia2baseURI + "hasSessionKey");
+    private static final Property hasUser = ResourceFactory.createProperty(sofia2baseURI + "hasUser");
+    private static final Property hasKp = ResourceFactory.createProperty(sofia2baseURI + "hasKp");
+    private static final Property hasKpInstance = ResourceFactory.createProperty(sofia2baseURI + "hasKpInstance");
+    private static final Property hasTimezoneId = ResourceFactory.createProperty(sofia2baseURI + "hasTimezoneId");
     /////////////////////////////////
-    
-    
-    public static String sofia2baseURI = "http://inter-iot.eu/syntax/SOFIA2#";
+
+    // Nodes of the streaming translation, which adds the triples directly to the graph
+    private static final Node typeNode = RDF.type.asNode();
+    private static final Node hasIdNode = hasId.asNode();
+    private static final Node hasTypeNode = hasType.asNode();
+    private static final Node hasValueNode = hasValue.asNode();
+    private static final Node hasNameNode = hasName.asNode();
+    private static final Node hasAttributeNode = hasAttribute.asNode();
+    private static final Node instanceTypeNode = instanceType.asNode();
+    private static final Node attributeTypeNode = attributeType.asNode();
+    private static final Node arrayTypeNode = arrayType.asNode();
+    private static final Node elementTypeNode = elementType.asNode();
+    private static final Node hasElementNode = hasElement.asNode();
+    private static final Node hasNumberNode = hasNumber.asNode();
+    private static final Node valueTypeNode = valueType.asNode();
+    private static final Node hasTimestampNode = hasTimestamp.asNode();
+    private static final Node hasSessionKeyNode = hasSessionKey.asNode();
+    private static final Node hasUserNode = hasUser.asNode();
+    private static final Node hasKpNode = hasKp.asNode();
+    private static final Node hasKpInstanceNode = hasKpInstance.asNode();
+    private static final Node hasTimezoneIdNode = hasTimezoneId.asNode();
+
+    // A top-level resource is translated if it has one of these types or properties
+    private static final Set<Node> topLevelTypes = new HashSet<Node>(Arrays.asList(arrayTypeNode, valueTypeNode, instanceTypeNode));
+    private static final Set<Node> topLevelProperties = new HashSet<Node>(Arrays.asList(hasAttributeNode, hasValueNode, hasTypeNode,
+            hasTimestampNode, hasUserNode, hasSessionKeyNode, hasKpNode, hasKpInstanceNode, hasNameNode, hasIdNode, hasElementNode));
+
+    // ObjectMapper is thread-safe once configured
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Parsers of the streaming translation
+    private static final JsonFactory streamingFactory = new JsonFactory();
 
     public Sofia2Translator() {
         super(sofia2baseURI, "SOFIA2");
@@ -128,240 +172,256 @@ public class Sofia2Translator extends SyntacticTranslator<String> {
         setKpInstanceURI(getBaseURI() + "hasKpInstance");
         setTimezoneIdURI(getBaseURI() + "hasTimezoneId");
         ////////////////////////////////////
-        
-        Model jenaModel = ModelFactory.createDefaultModel();
-
-        hasId = jenaModel.createProperty(getIdURI());
-        hasType = jenaModel.createProperty(getTypeURI());
-        hasValue = jenaModel.createProperty(getValueURI());
-        hasName = jenaModel.createProperty(getNameURI());
-        
-        hasAttribute = jenaModel.createProperty(getAttributeURI());
-
-        instanceType = jenaModel.createResource(getInstanceTypeURI());
-        attributeType = jenaModel.createResource(getAttributeTypeURI());
-
-        arrayType = jenaModel.createResource(getArrayTypeURI());
-        elementType = jenaModel.createResource(getElementTypeURI());
-        hasElement = jenaModel.createProperty(getHasElementURI());
-        hasNumber = jenaModel.createProperty(getHasNumberURI());
-
-        valueType = jenaModel.createResource(getValueTypeURI());
-        
-        ///////////////////////////////
-        hasTimestamp = jenaModel.createProperty(getTimestampURI());
-        hasSessionKey = jenaModel.createProperty(getSessionKeyURI());
-        hasUser = jenaModel.createProperty(getUserURI());
-        hasKp = jenaModel.createProperty(getKpURI());
-        hasKpInstance = jenaModel.createProperty(getKpInstanceURI());
-        hasTimezoneId = jenaModel.createProperty(getTimezoneIdURI());
-        ///////////////////////////////
-        
     }
 
     @Override
     public Model toJenaModel(String formatXString) throws IOException {
+        return toJenaModel(streamingFactory.createParser(formatXString));
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-        JsonFactory factory = mapper.getFactory();
-        JsonParser parser = factory.createParser(formatXString);
-        JsonNode topLevelNode = mapper.readTree(parser);
-
+    /**
+     * Streaming translation: the RDF statements are created while the JSON tokens are read, without building a tree.
+     * The result is the same as the translation of a Jackson tree that was done before.
+     * Triples are added straight to the graph of the model, without the Resource and Statement wrappers,
+     * and numbers are written as typed literals from their lexical form, without boxing them.
+     * The parser may also replay tokens that were already read, e.g. from a TokenBuffer. It is closed.
+     */
+    public Model toJenaModel(JsonParser parser) throws IOException {
         Model jenaModel = ModelFactory.createDefaultModel();
-
-        if (topLevelNode.isObject()) {
-            Resource myEntity = jenaModel.createResource();
-            parseJSONObjectToJena(myEntity, topLevelNode, jenaModel);
-        } else if (topLevelNode.isArray()) {
-            Resource arrayResource = jenaModel.createResource();
-            arrayResource.addProperty(RDF.type, arrayType);
-            parseArrayToJena(arrayResource, topLevelNode, jenaModel);
-        } else if (topLevelNode.isValueNode()) {
-            Resource valueResource = jenaModel.createResource();
-            valueResource.addProperty(RDF.type, valueType);
-            parseValueToJena(valueResource, topLevelNode, jenaModel);
-//            valueResource.addProperty(hasValue, topLevelNode.asText());
+        Graph graph = jenaModel.getGraph();
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                Node myEntity = NodeFactory.createBlankNode();
+                streamJSONObjectToJena(myEntity, parser, graph);
+            } else if (token == JsonToken.START_ARRAY) {
+                Node arrayResource = NodeFactory.createBlankNode();
+                add(graph, arrayResource, typeNode, arrayTypeNode);
+                streamArrayToJena(arrayResource, parser, graph);
+            } else if (token != null) {
+                Node valueResource = NodeFactory.createBlankNode();
+                add(graph, valueResource, typeNode, valueTypeNode);
+                streamValueToJena(valueResource, parser, graph);
+            }
+        } finally {
+            parser.close();
         }
-
         return jenaModel;
     }
 
-    private void parseJSONObjectToJena(Resource objectResource, JsonNode objectNode, Model jenaModel) {
-        Iterator<Map.Entry<String, JsonNode>> it = objectNode.fields();
+    private static void add(Graph graph, Node subject, Node predicate, Node object) {
+        graph.add(Triple.create(subject, predicate, object));
+    }
 
-        while (it.hasNext()) {
-            Map.Entry<String, JsonNode> field = it.next();
-            if (field.getKey().equals("_id")) {
-                //The instance has to have an id
-            	// {"_id":{"$oid":"..."}}
-                objectResource.addProperty(RDF.type, instanceType);
-                JsonNode idNode = field.getValue();
-//                objectResource.addProperty(hasId, idNode.get("$oid").asText());
-                // CHANGE ID TO URI FORMAT
-                String id = idNode.get("$oid").asText();
-                Iterator<Entry<String, JsonNode>> it2 = objectNode.fields();
-                String ontName = null;
-                while(it2.hasNext()){
-                	Map.Entry<String, JsonNode> field2 = it2.next();
-                	JsonNode node = field2.getValue();
-                	if(node.isObject()) {
-                		if(!field2.getKey().equals("contextData") && !field2.getKey().equals("_id")){ 
-                			ontName =  field2.getKey();
-                			break;
-                		}
-                	}
-                }
-               if(ontName != null) objectResource.addProperty(hasId, Sofia2Utils.urlize(id, ontName));
-               else objectResource.addProperty(hasId, id);
-                
-            } else if (field.getKey().equals("contextData")) {
-                if(field.getValue().has("session_key")) objectResource.addProperty(hasSessionKey, field.getValue().get("session_key").asText());
-                else if (field.getValue().has("sessionKey")) objectResource.addProperty(hasSessionKey, field.getValue().get("sessionKey").asText()); // Indication message
-                objectResource.addProperty(hasUser, field.getValue().get("user").asText());
-                objectResource.addProperty(hasKp, field.getValue().get("kp").asText());
-                if(field.getValue().has("kp_instancia")) objectResource.addProperty(hasKpInstance, field.getValue().get("kp_instancia").asText());
-                else if (field.getValue().has("kpInstance")) objectResource.addProperty(hasKpInstance, field.getValue().get("kpInstance").asText()); // Indication message
-                JsonNode timeNode = field.getValue().get("timestamp");
-                objectResource.addProperty(hasTimestamp, timeNode.get("$date").asText());
-                if(field.getValue().has("timezoneId")) objectResource.addProperty(hasTimezoneId, field.getValue().get("timezoneId").asText());
+    private static void add(Graph graph, Node subject, Node predicate, String text) {
+        graph.add(Triple.create(subject, predicate, NodeFactory.createLiteral(text)));
+    }
+
+    private static void add(Graph graph, Node subject, Node predicate, String lexicalForm, RDFDatatype datatype) {
+        graph.add(Triple.create(subject, predicate, NodeFactory.createLiteral(lexicalForm, datatype)));
+    }
+
+    // The parser is on the START_OBJECT token
+    private void streamJSONObjectToJena(Node objectResource, JsonParser parser, Graph graph) throws IOException {
+        String id = null;
+        String ontName = null; // Name of the first field whose value is an object
+        boolean hasContextData = false;
+        List<Entry<String, TokenBuffer>> pendingFields = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (ontName == null && token == JsonToken.START_OBJECT && !fieldName.equals("contextData") && !fieldName.equals("_id")) {
+                ontName = fieldName;
+            }
+            if (fieldName.equals("_id")) {
+                add(graph, objectResource, typeNode, instanceTypeNode);
+                id = readOid(parser);
+            } else if (fieldName.equals("contextData")) {
+                hasContextData = true;
+                streamContextDataToJena(objectResource, parser, graph);
+            } else if (token != JsonToken.START_OBJECT) {
+                streamAttributeToJena(objectResource, fieldName, parser, graph);
+            } else if (id != null && hasContextData) {
+                streamInstanceDataToJena(objectResource, fieldName, parser, graph);
             } else {
-                //Add attribute to object
-            	// JSON OBJECT OR ONTOLOGY INSTANCE. IF IT'S AN ONTOLOGY INSTANCE, TRANSLATE AS "hasType" + OTHER ATTRIBUTES
-            	JsonNode node = field.getValue();
-            	if(node.isObject()){
-            		// The returned JSON object for an ontology instance has _id and ContextData fields
-            			if(objectNode.has("_id") && objectNode.has("contextData")){	
-            		 		objectResource.addProperty(hasType, field.getKey()); // The key is the class name            		 		
-            		 		Iterator<Map.Entry<String, JsonNode>> itNode = node.fields();
-            		 		while(itNode.hasNext()){
-            		 			Map.Entry<String, JsonNode> instanceAttr = itNode.next();
-            		 			Resource attr = jenaModel.createResource();
-                                attr.addProperty(RDF.type, attributeType);
-                                objectResource.addProperty(hasAttribute, attr);
-                                attr.addProperty(hasName, instanceAttr.getKey());
-                                parseValueToJena(attr, instanceAttr.getValue(), jenaModel);
-            		 		}
-            		 		
-            		 	}else{
-            		 		Resource attr = jenaModel.createResource();
-                            attr.addProperty(RDF.type, attributeType);
-                            objectResource.addProperty(hasAttribute, attr);
-                            attr.addProperty(hasName, field.getKey());
-                            parseValueToJena(attr, field.getValue(), jenaModel);
-            		 	}
-            	}else{
-            		Resource attr = jenaModel.createResource();
-                    attr.addProperty(RDF.type, attributeType);
-                    objectResource.addProperty(hasAttribute, attr);
-                    attr.addProperty(hasName, field.getKey());
-                    parseValueToJena(attr, field.getValue(), jenaModel);
-            	}
-                
-//                parseJSONObjectToJena(attr, field.getValue(), jenaModel);
+                // Objects are ontology instance data if this object also has _id and contextData,
+                // which may come later. Keep the tokens until the end of the object
+                if (pendingFields == null) pendingFields = new ArrayList<Entry<String, TokenBuffer>>();
+                TokenBuffer buffer = new TokenBuffer(parser.getCodec(), false);
+                buffer.copyCurrentStructure(parser);
+                pendingFields.add(new AbstractMap.SimpleImmutableEntry<String, TokenBuffer>(fieldName, buffer));
             }
         }
-    }
 
-    private void parseValueToJena(Resource res, JsonNode jsonNode, Model jenaModel) {
-        Property hasValProperty = hasValue;
+        if (pendingFields != null) {
+            for (Entry<String, TokenBuffer> field : pendingFields) {
+                try (JsonParser fieldParser = field.getValue().asParser()) {
+                    fieldParser.nextToken();
+                    if (id != null && hasContextData) streamInstanceDataToJena(objectResource, field.getKey(), fieldParser, graph);
+                    else streamAttributeToJena(objectResource, field.getKey(), fieldParser, graph);
+                }
+            }
+        }
+        if (id != null) {
+            if (ontName != null) add(graph, objectResource, hasIdNode, Sofia2Utils.urlize(id, ontName));
+            else add(graph, objectResource, hasIdNode, id);
+        }
+    }
 
-        //If its a data value
-        if (jsonNode.isValueNode()) {
-            if (jsonNode.isNumber()) {
-                //Numeric value
-                if (jsonNode.isInt()) {
-                    res.addLiteral(hasValProperty, new Integer(jsonNode.asInt()));
-                } else if (jsonNode.isLong()) {
-                    res.addLiteral(hasValProperty, jsonNode.asLong());
-                } else if (jsonNode.isFloat() || jsonNode.isFloatingPointNumber()) {
-                    res.addLiteral(hasValProperty, new Float(jsonNode.asDouble()));
-                } else {
-                    res.addLiteral(hasValProperty, jsonNode.asDouble());
+    // {"_id":{"$oid":"..."}}
+    private String readOid(JsonParser parser) throws IOException {
+        String oid = null;
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (fieldName.equals("$oid")) oid = readText(parser);
+                else parser.skipChildren();
+            }
+        }
+        if (oid == null) throw new JsonParseException(parser, "Invalid SOFIA2 instance: _id has no $oid");
+        return oid;
+    }
+
+    private void streamContextDataToJena(Node objectResource, JsonParser parser, Graph graph) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) throw new JsonParseException(parser, "Invalid SOFIA2 instance: contextData is not an object");
+        Map<String, String> values = new HashMap<String, String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (fieldName.equals("timestamp")) {
+                values.remove("$date");
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String timeField = parser.getCurrentName();
+                    parser.nextToken();
+                    if (timeField.equals("$date")) values.put("$date", readText(parser));
+                    else parser.skipChildren();
                 }
-            } else if (jsonNode.isBoolean()) {
-                //Boolean value
-                res.addLiteral(hasValProperty, jsonNode.asBoolean());
-            } else if (jsonNode.isTextual()) {
-                //Textual value
-                res.addLiteral(hasValProperty, jsonNode.asText());
             } else {
-                //Not-typed (string) value
-                res.addProperty(hasValProperty, jsonNode.asText());
+                values.put(fieldName, readText(parser));
             }
-//            res.addLiteral(hasValProperty, jsonNode.asText());
-        } else if (jsonNode.isArray()) {
-            //If its an array of values
-            Resource arrayResource = jenaModel.createResource();
-            arrayResource.addProperty(RDF.type, arrayType);
-            res.addProperty(hasValProperty, arrayResource);
-
-            parseArrayToJena(arrayResource, jsonNode, jenaModel);
-        } else if (jsonNode.isObject()) {
-            //If its a JSON object
-            Resource objectResource = jenaModel.createResource();
-            //TODO: Add type to object resource? Is this necessary?
-//            objectResource.addProperty(RDF.type, "xxxxxx");
-            res.addProperty(hasValProperty, objectResource);
-            parseJSONObjectToJena(objectResource, jsonNode, jenaModel);
+        }
+        if (!values.containsKey("user") || !values.containsKey("kp") || !values.containsKey("$date")) {
+            throw new JsonParseException(parser, "Invalid SOFIA2 instance: user, kp or timestamp missing in contextData");
+        }
+        if (values.containsKey("session_key")) add(graph, objectResource, hasSessionKeyNode, values.get("session_key"));
+        else if (values.containsKey("sessionKey")) add(graph, objectResource, hasSessionKeyNode, values.get("sessionKey")); // Indication message
+        add(graph, objectResource, hasUserNode, values.get("user"));
+        add(graph, objectResource, hasKpNode, values.get("kp"));
+        if (values.containsKey("kp_instancia")) add(graph, objectResource, hasKpInstanceNode, values.get("kp_instancia"));
+        else if (values.containsKey("kpInstance")) add(graph, objectResource, hasKpInstanceNode, values.get("kpInstance")); // Indication message
+        add(graph, objectResource, hasTimestampNode, values.get("$date"));
+        if (values.containsKey("timezoneId")) add(graph, objectResource, hasTimezoneIdNode, values.get("timezoneId"));
+    }
+
+    // Ontology instance: {"OntologyName":{attributes}}. The key is the class name
+    private void streamInstanceDataToJena(Node objectResource, String ontName, JsonParser parser, Graph graph) throws IOException {
+        add(graph, objectResource, hasTypeNode, ontName);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String attributeName = parser.getCurrentName();
+            parser.nextToken();
+            streamAttributeToJena(objectResource, attributeName, parser, graph);
         }
     }
 
-    private void parseArrayToJena(Resource arrayResource, JsonNode arrayNode, Model jenaModel) {
+    private void streamAttributeToJena(Node objectResource, String attributeName, JsonParser parser, Graph graph) throws IOException {
+        Node attr = NodeFactory.createBlankNode();
+        add(graph, attr, typeNode, attributeTypeNode);
+        add(graph, objectResource, hasAttributeNode, attr);
+        add(graph, attr, hasNameNode, attributeName);
+        streamValueToJena(attr, parser, graph);
+    }
+
+    // Lexical forms are those of the Integer, Long, Float and Double values given by the former tree translation
+    private void streamValueToJena(Node res, JsonParser parser, Graph graph) throws IOException {
+        switch (parser.getCurrentToken()) {
+        case VALUE_NUMBER_INT:
+            switch (parser.getNumberType()) {
+            case INT:
+                add(graph, res, hasValueNode, Integer.toString(parser.getIntValue()), XSDDatatype.XSDint);
+                break;
+            case LONG:
+                add(graph, res, hasValueNode, Long.toString(parser.getLongValue()), XSDDatatype.XSDlong);
+                break;
+            default:
+                add(graph, res, hasValueNode, Double.toString(parser.getDoubleValue()), XSDDatatype.XSDdouble);
+            }
+            break;
+        case VALUE_NUMBER_FLOAT:
+            add(graph, res, hasValueNode, Float.toString((float) parser.getDoubleValue()), XSDDatatype.XSDfloat);
+            break;
+        case VALUE_TRUE:
+        case VALUE_FALSE:
+            add(graph, res, hasValueNode, parser.getBooleanValue() ? "true" : "false", XSDDatatype.XSDboolean);
+            break;
+        case VALUE_STRING:
+            add(graph, res, hasValueNode, parser.getText());
+            break;
+        case START_ARRAY:
+            Node arrayResource = NodeFactory.createBlankNode();
+            add(graph, arrayResource, typeNode, arrayTypeNode);
+            add(graph, res, hasValueNode, arrayResource);
+            streamArrayToJena(arrayResource, parser, graph);
+            break;
+        case START_OBJECT:
+            Node objectResource = NodeFactory.createBlankNode();
+            add(graph, res, hasValueNode, objectResource);
+            streamJSONObjectToJena(objectResource, parser, graph);
+            break;
+        default:
+            add(graph, res, hasValueNode, readText(parser));
+        }
+    }
+
+    private void streamArrayToJena(Node arrayResource, JsonParser parser, Graph graph) throws IOException {
         int counter = 1;
-        Iterator<JsonNode> arrayIt = arrayNode.elements();
-        while (arrayIt.hasNext()) {
-            JsonNode element = arrayIt.next();
-            Resource jenaElement = jenaModel.createResource();
-            jenaElement.addProperty(RDF.type, elementType);
-            arrayResource.addProperty(hasElement, jenaElement);
-            jenaElement.addLiteral(hasNumber, new Integer(counter++));
-            parseValueToJena(jenaElement, element, jenaModel);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            Node jenaElement = NodeFactory.createBlankNode();
+            add(graph, jenaElement, typeNode, elementTypeNode);
+            add(graph, arrayResource, hasElementNode, jenaElement);
+            add(graph, jenaElement, hasNumberNode, Integer.toString(counter++), XSDDatatype.XSDint);
+            streamValueToJena(jenaElement, parser, graph);
+        }
+    }
+
+    // Text of the current value, as given by JsonNode.asText()
+    private static String readText(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            switch (parser.getNumberType()) {
+            case INT: return String.valueOf(parser.getIntValue());
+            case LONG: return String.valueOf(parser.getLongValue());
+            default: return parser.getBigIntegerValue().toString();
+            }
+        case VALUE_NUMBER_FLOAT:
+            return String.valueOf(parser.getDoubleValue());
+        case VALUE_TRUE:
+            return "true";
+        case VALUE_FALSE:
+            return "false";
+        case VALUE_NULL:
+            return "null";
+        default: // Object or array
+            parser.skipChildren();
+            return "";
         }
     }
 
     @Override
-    public String toFormatX(Model jenaModelParam) throws IllegalSyntaxException {
-    	// TODO
-        Model jenaModel = ModelFactory.createDefaultModel().add(jenaModelParam);
-        ObjectMapper mapper = new ObjectMapper();
+    public String toFormatX(Model jenaModel) throws IllegalSyntaxException {
         LinkedList<JsonNode> jsonNodeList = new LinkedList<JsonNode>();
 
-        //Find the top-level RDF Entity (the entity that does not appear in Object of RDF triples)
-        Query topLevelQuery = QueryFactory.create("SELECT DISTINCT ?top WHERE { ?top ?y ?z MINUS {?a ?b ?top} }");
-        QueryExecution topLevelQueryExec = QueryExecutionFactory.create(topLevelQuery, jenaModel);
-        ResultSet results = topLevelQueryExec.execSelect();
-
-        while (results.hasNext()) {
-            QuerySolution solution = results.next();
-            RDFNode resultNode = solution.get("top");
-//            System.out.println(resultNode);
-
-            StmtIterator typesIt = jenaModel.listStatements(new SimpleSelector(resultNode.asResource(), RDF.type, (RDFNode) null));
-            StmtIterator propsIt = jenaModel.listStatements(new SimpleSelector(resultNode.asResource(), null, (RDFNode) null));
-            Set<Resource> types = typesIt.toSet().stream().map(x -> x.getObject().asResource()).collect(Collectors.toSet());
-            Set<Property> props = propsIt.toSet().stream().map(x -> x.getPredicate()).collect(Collectors.toSet());
-            if (
-                //Assume that a resource that has some RDF type from SOFIA2 is a SOFIA2 object/array/value
-                    types.contains(arrayType) ||
-                            types.contains(valueType) ||
-                            types.contains(instanceType) ||
-                            //Assume that a resource that has some of the SOFIA2 properties is of SOFIA2 type
-                            props.contains(hasAttribute) ||
-                            props.contains(hasValue) ||
-                            props.contains(hasType) ||
-                            props.contains(hasTimestamp) ||
-                            props.contains(hasUser) ||
-                            props.contains(hasSessionKey) ||
-                            props.contains(hasKp) ||
-                            props.contains(hasKpInstance) ||
-                            props.contains(hasName) ||
-                            props.contains(hasId) ||
-                            props.contains(hasElement)
-                    ) {
-                JsonNode someTopLevelNode = parseRDFEntityToJson(resultNode.asResource(), jenaModel, mapper);
-                if (someTopLevelNode != null) {
-                    jsonNodeList.add(someTopLevelNode);
-                }
+        for (Node topLevelEntity : findTopLevelEntities(jenaModel.getGraph())) {
+            JsonNode someTopLevelNode = parseRDFEntityToJson(jenaModel.wrapAsResource(topLevelEntity), jenaModel, mapper);
+            if (someTopLevelNode != null) {
+                jsonNodeList.add(someTopLevelNode);
             }
         }
 
@@ -389,6 +449,36 @@ public class Sofia2Translator extends SyntacticTranslator<String> {
 //        }
     }
 
+    /**
+     * Finds the top-level RDF entities (the entities that do not appear in Object of RDF triples) with a single pass over the graph.
+     * Only SOFIA2 entities are returned: those that have a SOFIA2 type (object, array or value) or some of the SOFIA2 properties.
+     */
+    private static List<Node> findTopLevelEntities(Graph graph) {
+        Set<Node> objects = new HashSet<Node>();
+        Map<Node, Boolean> subjects = new LinkedHashMap<Node, Boolean>(); // Subject -> is a SOFIA2 entity
+        ExtendedIterator<Triple> triples = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (triples.hasNext()) {
+                Triple triple = triples.next();
+                Node object = triple.getObject();
+                if (!object.isLiteral()) objects.add(object);
+                if (topLevelProperties.contains(triple.getPredicate()) || (triple.getPredicate().equals(typeNode) && topLevelTypes.contains(object))) {
+                    subjects.put(triple.getSubject(), Boolean.TRUE);
+                } else {
+                    subjects.putIfAbsent(triple.getSubject(), Boolean.FALSE);
+                }
+            }
+        } finally {
+            triples.close();
+        }
+
+        List<Node> topLevelEntities = new ArrayList<Node>();
+        for (Entry<Node, Boolean> subject : subjects.entrySet()) {
+            if (subject.getValue() && !objects.contains(subject.getKey())) topLevelEntities.add(subject.getKey());
+        }
+        return topLevelEntities;
+    }
+
     private JsonNode parseRDFEntityToJson(Resource entityResource, Model jenaModel, ObjectMapper mapper) {
         //TODO: Implement
 
@@ -665,7 +755,6 @@ public class Sofia2Translator extends SyntacticTranslator<String> {
      * @throws IOException
      */
     public String prettifyJsonString(String jsonString) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
         JsonFactory factory = mapper.getFactory();
         JsonParser parser = factory.createParser(jsonString);
         JsonNode jsonNode = mapper.readTree(parser);
@@ -24,11 +24,11 @@ import eu.interiot.intermw.comm.broker.Queue;
 import eu.interiot.intermw.comm.broker.Topic;
 import eu.interiot.intermw.comm.broker.exceptions.BrokerException;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 class PublisherMock<M> implements Publisher<M> {
-    private java.util.Queue<M> publishedMessages = new LinkedList<>();
+    private java.util.Queue<M> publishedMessages = new ConcurrentLinkedQueue<>(); // Observations are published by the pipeline workers
 
     @Override
     public void publish(M m) throws BrokerException {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends requests through the async client to a client that answers with a given sequence of status codes.
+ */
+public class Sofia2AsyncClientTest {
+    private static final long BACKOFF = 50;
+    private ScriptedClient client;
+    private Sofia2AsyncClient asyncClient;
+
+    @After
+    public void tearDown() throws Exception {
+        asyncClient.shutdown();
+        client.close();
+    }
+
+    @Test
+    public void testUnsubscribeRetries() throws Exception {
+        client = new ScriptedClient(500, 503, 200);
+        asyncClient = new Sofia2AsyncClient(client, 2, 3, BACKOFF);
+
+        assertEquals("unsubscribed", asyncClient.unsubscribe("subscription-1").get(5, TimeUnit.SECONDS));
+        assertEquals(3, client.calls.size());
+        // The delay doubles with each retry
+        assertTrue(client.calls.get(1) - client.calls.get(0) >= TimeUnit.MILLISECONDS.toNanos(BACKOFF));
+        assertTrue(client.calls.get(2) - client.calls.get(1) >= TimeUnit.MILLISECONDS.toNanos(2 * BACKOFF));
+    }
+
+    @Test
+    public void testRetryLimit() throws Exception {
+        client = new ScriptedClient(500, 500, 500, 500, 200);
+        asyncClient = new Sofia2AsyncClient(client, 2, 3, BACKOFF);
+
+        assertStatus(500, () -> asyncClient.unsubscribe("subscription-1").get(5, TimeUnit.SECONDS));
+        assertEquals(4, client.calls.size()); // The first attempt and 3 retries
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        client = new ScriptedClient(404, 200);
+        asyncClient = new Sofia2AsyncClient(client, 2, 3, BACKOFF);
+
+        assertStatus(404, () -> asyncClient.unsubscribe("subscription-1").get(5, TimeUnit.SECONDS));
+        assertEquals(1, client.calls.size());
+    }
+
+    @Test
+    public void testSubscribeNotRetried() throws Exception {
+        client = new ScriptedClient(500, 200);
+        asyncClient = new Sofia2AsyncClient(client, 2, 3, BACKOFF);
+
+        // SOFIA2 may have created the subscription, so a retry could create a duplicate
+        assertStatus(500, () -> asyncClient.subscribe("SensorTermostato", "id", "1", "http://localhost/sofia2/c").get(5, TimeUnit.SECONDS));
+        assertEquals(1, client.calls.size());
+    }
+
+    private interface Request {
+        Object send() throws Exception;
+    }
+
+    private static void assertStatus(int statusCode, Request request) throws Exception {
+        try {
+            request.send();
+            fail("Request should have failed with " + statusCode);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Sofia2HttpException);
+            assertEquals(statusCode, ((Sofia2HttpException) e.getCause()).getStatusCode());
+        }
+    }
+
+    /**
+     * Fails each request with the next status code of the script, or succeeds if it is 200.
+     */
+    private static class ScriptedClient extends Sofia2Client {
+        final Queue<Integer> statusCodes;
+        final List<Long> calls = new CopyOnWriteArrayList<>(); // Time of each request (ns)
+
+        ScriptedClient(Integer... statusCodes) throws Exception {
+            super(properties(), "http://localhost:4570/");
+            this.statusCodes = new ArrayDeque<>(Arrays.asList(statusCodes));
+        }
+
+        private static Properties properties() {
+            Properties properties = new Properties();
+            properties.setProperty("token", "test");
+            properties.setProperty("KP", "test");
+            return properties;
+        }
+
+        private synchronized void respond() throws Sofia2HttpException {
+            calls.add(System.nanoTime());
+            int statusCode = statusCodes.remove();
+            if (statusCode != 200) throw new Sofia2HttpException(statusCode);
+        }
+
+        @Override
+        String subscribe(String ontName, String fieldName, String fieldValue, String callback) throws Exception {
+            respond();
+            return "subscription-1";
+        }
+
+        @Override
+        String unsubscribe(String id) throws Exception {
+            respond();
+            return "unsubscribed";
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import eu.interiot.translators.syntax.sofia2.Sofia2Translator;
+import org.apache.jena.rdf.model.Model;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Service;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Benchmarks against the SOFIA2 platform emulator.
+ * They are skipped unless the tests are run with -Dsofia2.benchmark=true
+ */
+public class Sofia2BenchmarkTest {
+    private static final int PORT = 4570;
+    private static final String BASE_URL = "http://localhost:" + PORT + "/";
+    private static Sofia2PlatformEmulator platformEmulator;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("sofia2.benchmark"));
+        platformEmulator = new Sofia2PlatformEmulator(PORT, 5);
+        platformEmulator.setVerbose(false);
+        platformEmulator.start();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (platformEmulator != null) {
+            platformEmulator.stop();
+        }
+    }
+
+    @Test
+    public void testTransports() throws Exception {
+        int requests = 2000;
+        Properties properties = new Properties();
+
+        properties.setProperty("http-transport", Sofia2Transport.URL_CONNECTION);
+        long urlConnectionTime;
+        try (Sofia2Transport transport = Sofia2Transport.create(properties, null)) {
+            urlConnectionTime = runQueries(transport, requests);
+        }
+
+        properties.setProperty("http-transport", Sofia2Transport.POOLED);
+        long pooledTime;
+        try (Sofia2Transport transport = Sofia2Transport.create(properties, null)) {
+            pooledTime = runQueries(transport, requests);
+        }
+
+        System.out.println("Transport benchmark (" + requests + " queries)");
+        System.out.println("url-connection: " + urlConnectionTime + " ms");
+        System.out.println("pooled: " + pooledTime + " ms");
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        int devices = 10000;
+        Sofia2Client client = createClient();
+        client.join();
+        List<String> thingIds = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            thingIds.add("sensor-" + i);
+        }
+
+        client.registerAll("DeleteBenchmark", "identificador", thingIds);
+        long start = System.currentTimeMillis();
+        for (String thingId : thingIds) {
+            client.delete("DeleteBenchmark", "identificador", thingId);
+        }
+        long serialTime = System.currentTimeMillis() - start;
+
+        client.registerAll("DeleteBenchmark", "identificador", thingIds);
+        start = System.currentTimeMillis();
+        Sofia2BatchResult<Void> result = client.deleteAll("DeleteBenchmark", "identificador", thingIds);
+        long bulkTime = System.currentTimeMillis() - start;
+        client.leave();
+
+        assertFalse(result.hasFailures());
+        assertEquals(devices, result.getResults().size());
+        System.out.println("Delete benchmark (" + devices + " devices)");
+        System.out.println("serial: " + serialTime + " ms");
+        System.out.println("bulk: " + bulkTime + " ms");
+    }
+
+    @Test
+    public void testCallbackDispatch() throws Exception {
+        int callbackPort = PORT + 1;
+        Sofia2CallbackDispatcher dispatcher = new Sofia2CallbackDispatcher();
+        Service callbackServer = Service.ignite().port(callbackPort);
+        callbackServer.post(Sofia2CallbackDispatcher.ROUTE, dispatcher.route());
+        callbackServer.awaitInitialization();
+        try {
+            System.out.println("Callback benchmark, Spark server");
+            runCallbacks(dispatcher, callbackPort);
+        } finally {
+            callbackServer.stop();
+        }
+        try (Sofia2CallbackListener listener = new Sofia2CallbackListener(0, 1, 4, 30000, 1048576, null)) {
+            System.out.println("Callback benchmark, NIO listener");
+            runCallbacks(listener.getDispatcher(), listener.getPort());
+        }
+    }
+
+    @Test
+    public void testTranslatorAllocation() throws Exception {
+        int translations = 20000;
+        String json = new String(Files.readAllBytes(Paths.get("src/test/resources/SOFIA2/Instance.json")), StandardCharsets.UTF_8);
+        Model model = new Sofia2Translator().toJenaModel(json);
+        Sofia2Translator shared = new Sofia2Translator();
+
+        System.out.println("Translator allocation benchmark (" + translations + " translations)");
+        for (int round = 0; round < 2; round++) { // The first round is the warm up
+            long perCall = allocatedBytes(() -> new Sofia2Translator().toJenaModel(json), translations);
+            long perPlatform = allocatedBytes(() -> shared.toJenaModel(json), translations);
+            long perCallFormatX = allocatedBytes(() -> new Sofia2Translator().toFormatX(model), translations);
+            long perPlatformFormatX = allocatedBytes(() -> shared.toFormatX(model), translations);
+            if (round == 0) continue;
+            System.out.println("toJenaModel, new translator: " + perCall / translations + " bytes per translation");
+            System.out.println("toJenaModel, shared translator: " + perPlatform / translations + " bytes per translation");
+            System.out.println("toFormatX, new translator: " + perCallFormatX / translations + " bytes per translation");
+            System.out.println("toFormatX, shared translator: " + perPlatformFormatX / translations + " bytes per translation");
+        }
+    }
+
+    @Test
+    public void testLargeObservationTranslation() throws Exception {
+        Sofia2Translator translator = new Sofia2Translator();
+        System.out.println("Large observation translation benchmark");
+        for (int readings : new int[] {10, 1000, 100000}) {
+            String json = largeObservation(readings);
+            int translations = Math.max(10, 100000 / readings);
+            allocatedBytes(() -> translator.toJenaModel(json), translations); // Warm up
+            long start = System.nanoTime();
+            long allocated = allocatedBytes(() -> translator.toJenaModel(json), translations);
+            long time = (System.nanoTime() - start) / translations / 1000;
+            System.out.println(readings + " readings: " + time + " us, " + allocated / translations / readings + " bytes per reading");
+        }
+    }
+
+    @Test
+    public void testFormatXTranslation() throws Exception {
+        Sofia2Translator translator = new Sofia2Translator();
+        System.out.println("Translation to SOFIA2 JSON benchmark");
+        for (int readings : new int[] {0, 10, 100, 1000, 10000}) {
+            Model model = translator.toJenaModel(largeObservation(readings));
+            int translations = Math.max(10, 10000 / Math.max(1, readings));
+            for (int i = 0; i < translations; i++) { // Warm up
+                translator.toFormatX(model);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < translations; i++) {
+                translator.toFormatX(model);
+            }
+            long time = (System.nanoTime() - start) / translations / 1000;
+            System.out.println(model.size() + " triples: " + time + " us per translation");
+        }
+    }
+
+    // Observation with an array of readings: {"_id":...,"contextData":...,"SensorTemperatura":{"medidas":[{"medida":23,"valor":11.5},...]}}
+    private static String largeObservation(int readings) {
+        StringBuilder json = new StringBuilder("{\"_id\":{\"$oid\":\"510f86598dfe0dd9595f2e15\"},"
+                + "\"contextData\":{\"user\":\"sofia\",\"kp\":\"benchmark\",\"timestamp\":{\"$date\":\"2018-02-06T11:48:21.788Z\"}},"
+                + "\"SensorTemperatura\":{\"identificador\":\"S_Temperatura_00001\",\"medidas\":[");
+        for (int i = 0; i < readings; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"medida\":").append(i).append(",\"valor\":").append(i * 0.5).append('}');
+        }
+        return json.append("]}}").toString();
+    }
+
+    private interface Translation {
+        void run() throws Exception;
+    }
+
+    // Bytes allocated by this thread while running the translation the given times
+    private long allocatedBytes(Translation translation, int times) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < times; i++) {
+            translation.run();
+        }
+        return threads.getThreadAllocatedBytes(threadId) - start;
+    }
+
+    private void runCallbacks(Sofia2CallbackDispatcher dispatcher, int callbackPort) throws Exception {
+        int callbacks = 2000;
+        Random random = new Random(1);
+        try (Sofia2Transport transport = Sofia2Transport.create(new Properties(), null)) {
+            for (int subscriptions : new int[] {1, 1000, 50000}) {
+                while (dispatcher.size() < subscriptions) {
+                    dispatcher.register("conversation-" + dispatcher.size(), body -> Sofia2CallbackDispatcher.CallbackResult.OK);
+                }
+                for (int i = 0; i < callbacks / 10; i++) { // Warm up
+                    sendCallback(transport, callbackPort, "conversation-" + random.nextInt(subscriptions));
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < callbacks; i++) {
+                    sendCallback(transport, callbackPort, "conversation-" + random.nextInt(subscriptions));
+                }
+                long latency = (System.nanoTime() - start) / callbacks / 1000;
+                System.out.println(subscriptions + " subscriptions: " + latency + " us per callback (" + callbacks + " callbacks)");
+            }
+        }
+    }
+
+    private void sendCallback(Sofia2Transport transport, int port, String conversationId) throws Exception {
+        transport.execute("POST", "http://localhost:" + port + "/" + Sofia2CallbackDispatcher.CALLBACK_PATH + conversationId,
+                "{\"version\":\"LEGACY\",\"body\":{\"data\":\"{}\"}}", null);
+    }
+
+    private Sofia2Client createClient() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("token", "benchmark");
+        properties.setProperty("KP", "benchmark");
+        properties.setProperty("device-identifier-type", "string");
+        return new Sofia2Client(properties, BASE_URL);
+    }
+
+    private long runQueries(Sofia2Transport transport, int requests) throws Exception {
+        String queryUrl = BASE_URL + "sib/services/api_ssap/v01/SSAPResource?$sessionKey=benchmark&$ontology=SensorTemperatura"
+                + "&$query=" + URLEncoder.encode("db.SensorTemperatura.find()", "UTF-8") + "&$queryType=NATIVE";
+        for (int i = 0; i < requests / 10; i++) { // Warm up
+            transport.execute("GET", queryUrl, null, Collections.singletonMap("Accept", "application/json"));
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            transport.execute("GET", queryUrl, null, Collections.singletonMap("Accept", "application/json"));
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
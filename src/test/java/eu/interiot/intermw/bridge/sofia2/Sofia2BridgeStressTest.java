@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import eu.interiot.intermw.bridge.BridgeConfiguration;
+import eu.interiot.intermw.commons.DefaultConfiguration;
+import eu.interiot.intermw.commons.model.Platform;
+import eu.interiot.message.ID.EntityID;
+import eu.interiot.message.Message;
+import eu.interiot.message.managers.URI.URIManagerMessageMetadata.MessageTypesEnum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spark.Spark;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many subscribe, unsubscribe and callback operations in parallel against the emulator.
+ */
+public class Sofia2BridgeStressTest {
+    private static final int PORT = 4572;
+    private static final int CONVERSATIONS = 200;
+    private static final int THREADS = 16;
+    private Sofia2PlatformEmulator platformEmulator;
+
+    @Before
+    public void setUp() throws Exception {
+        platformEmulator = new Sofia2PlatformEmulator(PORT, 1);
+        platformEmulator.setObservationsInterval(20);
+        platformEmulator.setVerbose(false);
+        platformEmulator.start();
+    }
+
+    @After
+    public void tearDown() {
+        platformEmulator.stop();
+    }
+
+    @Test
+    public void testConcurrentSubscriptions() throws Exception {
+        Message platformRegisterMsg = new Message(Resources.toString(Resources.getResource("messages/platform-register.json"), Charsets.UTF_8));
+        String thingSubscribeJson = Resources.toString(Resources.getResource("messages/thing-subscribe.json"), Charsets.UTF_8);
+        String thingUnsubscribeJson = Resources.toString(Resources.getResource("messages/thing-unsubscribe.json"), Charsets.UTF_8);
+        String indication = Resources.toString(Resources.getResource("observations/example-indication.json"), Charsets.UTF_8);
+
+        EntityID platformId = platformRegisterMsg.getMetadata().asPlatformMessageMetadata().getReceivingPlatformIDs().iterator().next();
+        Platform platform = new Platform();
+        platform.setPlatformId(platformId.toString());
+        platform.setClientId("test");
+        platform.setName("Example Platform #1");
+        platform.setType("sofia2");
+        platform.setBaseEndpoint(new URL("http://localhost:" + PORT + "/"));
+        platform.setLocation("http://test.inter-iot.eu/TestLocation");
+
+        BridgeConfiguration configuration = new BridgeConfiguration("Sofia2Bridge.properties", platform.getPlatformId(), new DefaultConfiguration("intermw.properties"));
+        try {
+            Spark.port(new URL(configuration.getProperty("bridge.callback.url")).getPort());
+        } catch (IllegalStateException e) {
+            // The callback server has already been started by another test
+        }
+
+        Sofia2Bridge sofiaBridge = new Sofia2Bridge(configuration, platform);
+        PublisherMock<Message> publisher = new PublisherMock<>();
+        sofiaBridge.setPublisher(publisher);
+        sofiaBridge.process(platformRegisterMsg);
+        assertTrue(publisher.retrieveMessage().getMetadata().getMessageTypes().contains(MessageTypesEnum.PLATFORM_REGISTER));
+
+        // Each task subscribes a conversation, receives callbacks and unsubscribes it.
+        // Extra callbacks are sent directly to the dispatcher, also for conversations that are being unsubscribed
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            String conversationId = "stress-" + i;
+            tasks.add(executor.submit(() -> {
+                Message subscribeMsg = new Message(thingSubscribeJson);
+                subscribeMsg.getMetadata().setConversationId(conversationId);
+                sofiaBridge.process(subscribeMsg);
+                Random random = new Random(conversationId.hashCode());
+                for (int j = 0; j < 10; j++) {
+                    String target = "stress-" + random.nextInt(CONVERSATIONS);
+                    Sofia2CallbackDispatcher.spark().dispatch(target, ByteBuffer.wrap(indication.getBytes(Charsets.UTF_8)));
+                }
+                Thread.sleep(random.nextInt(100));
+                Message unsubscribeMsg = new Message(thingUnsubscribeJson);
+                unsubscribeMsg.getMetadata().setConversationId(conversationId);
+                unsubscribeMsg.getMetadata().asPlatformMessageMetadata().setSubscriptionId(conversationId);
+                sofiaBridge.process(unsubscribeMsg);
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+
+        int subscribeResponses = 0;
+        int unsubscribeResponses = 0;
+        Message message;
+        while ((message = publisher.retrieveMessage()) != null) {
+            Set<MessageTypesEnum> messageTypes = message.getMetadata().getMessageTypes();
+            assertFalse(messageTypes.contains(MessageTypesEnum.ERROR));
+            if (messageTypes.contains(MessageTypesEnum.RESPONSE) && messageTypes.contains(MessageTypesEnum.SUBSCRIBE)) subscribeResponses++;
+            if (messageTypes.contains(MessageTypesEnum.RESPONSE) && messageTypes.contains(MessageTypesEnum.UNSUBSCRIBE)) unsubscribeResponses++;
+        }
+        assertEquals(CONVERSATIONS, subscribeResponses);
+        assertEquals(CONVERSATIONS, unsubscribeResponses);
+        assertEquals(0, platformEmulator.getSubscriptionCount());
+    }
+}
@@ -103,7 +103,11 @@ public class Sofia2BridgeTest {
         
         URL callbackUrl = new URL(configuration.getProperty("bridge.callback.url"));
         int callbackPort = callbackUrl.getPort();
-        Spark.port(callbackPort);
+        try {
+            Spark.port(callbackPort);
+        } catch (IllegalStateException e) {
+            // The callback server has already been started by another test
+        }
 
         Sofia2Bridge sofiaBridge = new Sofia2Bridge(configuration, platform);
         PublisherMock<Message> publisher = new PublisherMock<>();
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends raw HTTP requests to a dedicated callback listener.
+ */
+public class Sofia2CallbackListenerTest {
+    private static final String INDICATION = "{\"version\":\"LEGACY\",\"body\":{\"data\":\"{\\\"id\\\":1}\"}}";
+    private Sofia2CallbackListener listener;
+    private List<String> observations = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        listener = new Sofia2CallbackListener(0, 2, 2, 5000, 1024, null);
+        listener.getDispatcher().register("conversation-1", observation -> {
+            observations.add(observation.getData());
+            return Sofia2CallbackDispatcher.CallbackResult.OK;
+        });
+        listener.getDispatcher().register("busy", observation -> new Sofia2CallbackDispatcher.CallbackResult(429, 2));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        listener.close();
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            for (int i = 0; i < 3; i++) {
+                send(socket, post("conversation-1", INDICATION));
+                assertEquals("HTTP/1.1 200 OK", readResponse(in));
+            }
+            // Pipelined requests are answered in order
+            send(socket, post("conversation-1", INDICATION) + post("unknown", INDICATION) + post("conversation-1", INDICATION));
+            assertEquals("HTTP/1.1 200 OK", readResponse(in));
+            assertEquals("HTTP/1.1 404 Not Found", readResponse(in));
+            assertEquals("HTTP/1.1 200 OK", readResponse(in));
+        }
+        assertEquals(5, observations.size());
+        assertEquals("{\"id\":1}", observations.get(0));
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        String body = INDICATION.substring(0, 10) + "\r\n" + Integer.toHexString(INDICATION.length() - 10) + ";ext=1\r\n" + INDICATION.substring(10);
+        try (Socket socket = connect()) {
+            send(socket, "POST /sofia2/conversation-1 HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "a\r\n" + body + "\r\n0\r\n\r\n");
+            assertEquals("HTTP/1.1 200 OK", readResponse(reader(socket)));
+        }
+        assertEquals("{\"id\":1}", observations.get(0));
+
+        try (Socket socket = connect()) {
+            send(socket, "POST /sofia2/conversation-1 HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n-a\r\n");
+            assertEquals("HTTP/1.1 400 Bad Request", readResponse(reader(socket))); // Negative chunk size
+        }
+    }
+
+    @Test
+    public void testExpectContinue() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            String request = post("conversation-1", INDICATION);
+            int headerEnd = request.indexOf("\r\n\r\n");
+            send(socket, request.substring(0, headerEnd) + "\r\nExpect: 100-continue\r\n\r\n");
+            assertEquals("HTTP/1.1 100 Continue", readResponse(in));
+            send(socket, request.substring(headerEnd + 4));
+            assertEquals("HTTP/1.1 200 OK", readResponse(in));
+        }
+        assertEquals(1, observations.size());
+    }
+
+    @Test
+    public void testRejectedRequests() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            send(socket, post("busy", INDICATION));
+            assertEquals("HTTP/1.1 429 Too Many Requests", in.readLine());
+            assertEquals("Content-Length: 0", in.readLine());
+            assertEquals("Retry-After: 2", in.readLine());
+            in.readLine();
+            send(socket, post("conversation-1", "{\"body\":{}}"));
+            assertEquals("HTTP/1.1 400 Bad Request", readResponse(in));
+        }
+        try (Socket socket = connect()) {
+            StringBuilder large = new StringBuilder();
+            while (large.length() <= 1024) large.append(INDICATION);
+            send(socket, post("conversation-1", large.toString()));
+            BufferedReader in = reader(socket);
+            assertEquals("HTTP/1.1 413 Payload Too Large", readResponse(in));
+            assertNull(in.readLine()); // Closed
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /sofia2/conversation-1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertEquals("HTTP/1.1 405 Method Not Allowed", readResponse(reader(socket)));
+        }
+        assertEquals(0, observations.size());
+    }
+
+    @Test
+    public void testSharedListener() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("callback-listener", "nio");
+        properties.setProperty("callback-listener-shared", "true");
+        Sofia2CallbackListener first = Sofia2CallbackListener.create(properties);
+        properties.setProperty("callback-listener-workers", "8"); // Ignored, with a warning
+        Sofia2CallbackListener second = Sofia2CallbackListener.create(properties);
+        assertSame(first, second);
+
+        first.close(); // Still used by the second bridge
+        try (Socket socket = new Socket("localhost", second.getPort())) {
+            socket.setSoTimeout(5000);
+            send(socket, post("unknown", INDICATION));
+            assertEquals("HTTP/1.1 404 Not Found", readResponse(reader(socket)));
+        }
+        second.close();
+
+        Sofia2CallbackListener third = Sofia2CallbackListener.create(properties);
+        assertTrue(third != first); // The closed listener is no longer shared
+        third.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", listener.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String post(String conversationId, String body) {
+        return "POST /sofia2/" + conversationId + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    // Returns the status line. Responses have no body
+    private static String readResponse(BufferedReader in) throws IOException {
+        String statusLine = in.readLine();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty());
+        return statusLine;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which instance keys the duplicate filter discards.
+ */
+public class Sofia2DuplicateFilterTest {
+
+    @Test
+    public void testDuplicates() {
+        Sofia2DuplicateFilter filter = new Sofia2DuplicateFilter(100, 60000);
+        assertFalse(filter.isDuplicate("conversation-1", "a@1"));
+        assertFalse(filter.isDuplicate("conversation-1", "a@2")); // Same instance, new timestamp
+        assertTrue(filter.isDuplicate("conversation-1", "a@1"));
+        assertFalse(filter.isDuplicate("conversation-1", null));
+        assertFalse(filter.isDuplicate("conversation-1", null)); // Instances without a key are always delivered
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void testConversations() {
+        // Two conversations subscribed to the same device receive each instance once per conversation
+        Sofia2DuplicateFilter filter = new Sofia2DuplicateFilter(100, 60000);
+        assertFalse(filter.isDuplicate("conversation-1", "a@1"));
+        assertFalse(filter.isDuplicate("conversation-2", "a@1"));
+        assertTrue(filter.isDuplicate("conversation-1", "a@1"));
+        assertTrue(filter.isDuplicate("conversation-2", "a@1"));
+        assertEquals(2, filter.getDuplicates());
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        Sofia2DuplicateFilter filter = new Sofia2DuplicateFilter(100, 50);
+        assertFalse(filter.isDuplicate("conversation-1", "a@1"));
+        assertTrue(filter.isDuplicate("conversation-1", "a@1"));
+        Thread.sleep(100);
+        assertFalse(filter.isDuplicate("conversation-1", "a@1")); // Forgotten after the window
+        assertTrue(filter.isDuplicate("conversation-1", "a@1"));
+    }
+
+    @Test
+    public void testEviction() {
+        Sofia2DuplicateFilter filter = new Sofia2DuplicateFilter(3, 60000);
+        for (int i = 1; i <= 3; i++) {
+            assertFalse(filter.isDuplicate("conversation-1", "a@" + i));
+        }
+        assertTrue(filter.isDuplicate("conversation-1", "a@1")); // A repeated key does not refresh its position
+        assertFalse(filter.isDuplicate("conversation-1", "a@4")); // Evicts the oldest key
+        assertFalse(filter.isDuplicate("conversation-1", "a@1"));
+        assertTrue(filter.isDuplicate("conversation-1", "a@3"));
+        assertTrue(filter.isDuplicate("conversation-1", "a@4"));
+        assertFalse(filter.isDuplicate("conversation-1", "a@2")); // Evicted by a@1
+    }
+
+    @Test
+    public void testDisabled() {
+        Properties properties = new Properties();
+        properties.setProperty("duplicate-filter-size", "0");
+        assertNull(Sofia2DuplicateFilter.create(properties));
+    }
+}
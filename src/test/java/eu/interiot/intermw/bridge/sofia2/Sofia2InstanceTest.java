@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads the routing values of the instances sent by SOFIA2.
+ */
+public class Sofia2InstanceTest {
+
+    @Test
+    public void testIndication() throws Exception {
+        String indication = Resources.toString(Resources.getResource("observations/example-indication.json"), Charsets.UTF_8);
+        String data = new JsonParser().parse(indication).getAsJsonObject().getAsJsonObject("body").get("data").getAsString();
+        Sofia2Instance instance = Sofia2SsapReader.observation(new ByteArrayInputStream(indication.getBytes(Charsets.UTF_8)));
+
+        assertEquals(new JsonParser().parse(data), new JsonParser().parse(instance.getData()));
+        assertEquals(data.trim().length(), instance.getSize()); // From the first to the last token
+        assertEquals("5ad46394e4b0ffd95dce1277", instance.getObjectId());
+        assertEquals("2018-04-16T08:49:24.678Z", instance.getTimestamp());
+        assertEquals("5ad46394e4b0ffd95dce1277@2018-04-16T08:49:24.678Z", instance.getInstanceKey());
+        assertEquals("1", instance.getIdentifier("SensorTermostato", "id"));
+        assertEquals("23.6", instance.getIdentifier("SensorTermostato", "temp"));
+        assertEquals("SensorTermostato/1", instance.getDeviceKey(Collections.singletonMap("SensorTermostato", "id")));
+        assertNull(instance.getDeviceKey(Collections.singletonMap("OtherOntology", "id")));
+    }
+
+    @Test
+    public void testObjectIdentifier() throws Exception {
+        Sofia2Instance instance = Sofia2Instance.parse("{\"_id\":{\"$oid\":\"abc\"},\"Sensor\":{\"name\":\"s1\",\"location\":{\"lat\":1}}}");
+
+        assertEquals("abc", instance.getIdentifier("Sensor", "_id"));
+        assertEquals("Sensor/abc", instance.getDeviceKey(Collections.singletonMap("Sensor", "_id")));
+        assertNull(instance.getIdentifier("Sensor", "location")); // Not a scalar
+        assertNull(instance.getInstanceKey()); // No timestamp
+    }
+
+    @Test
+    public void testObjectData() throws Exception {
+        // LEGACY body whose data is not encoded in a string. Reading stops at the end of the value
+        String indication = "{\"body\":{\"data\":{\"_id\":{\"$oid\":\"abc\"},\"Sensor\":{\"id\":2}},\"ok\":true},\"messageId\":\"m1\"}";
+        Sofia2Instance instance = Sofia2SsapReader.observation(new ByteArrayInputStream(indication.getBytes(Charsets.UTF_8)));
+
+        assertEquals("{\"_id\":{\"$oid\":\"abc\"},\"Sensor\":{\"id\":2}}", instance.getData());
+        assertEquals(instance.getData().length(), instance.getSize());
+        assertEquals("2", instance.getIdentifier("Sensor", "id"));
+        assertNull(Sofia2SsapReader.observation(new ByteArrayInputStream("{\"body\":{\"data\":null}}".getBytes(Charsets.UTF_8))));
+        assertEquals(19, Sofia2Instance.parse("{\"t\":\"ºC ºC ºC\"}").getSize()); // UTF-8 bytes
+    }
+
+    @Test
+    public void testInvalidData() throws Exception {
+        try {
+            Sofia2Instance.parse("{\"_id\":{\"$oid\":\"abc\"},\"Sensor\":{\"id\":");
+            fail("Truncated data should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertNull(Sofia2Instance.parse("[1,2]").getObjectId());
+        assertEquals("[1,2]", Sofia2Instance.parse("[1,2]").getData());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes observations through a batcher with a publisher that records the batches.
+ */
+public class Sofia2ObservationBatcherTest {
+    private static final String OBSERVATION = "http://example.org/observation/";
+
+    @Test
+    public void testBatchSize() throws Exception {
+        List<Long> published = new CopyOnWriteArrayList<>(); // Size of each batch
+        Sofia2ObservationBatcher batcher = new Sofia2ObservationBatcher(3, 60000, (conversationId, model) -> published.add(model.size()));
+        for (int i = 0; i < 7; i++) {
+            batcher.add("conversation-1", observation(i));
+        }
+        assertEquals(Arrays.asList(3L, 3L), published); // Full batches are published at once
+
+        batcher.shutdown(); // The remaining observation is published on shutdown
+        assertEquals(Arrays.asList(3L, 3L, 1L), published);
+        batcher.add("conversation-1", observation(7)); // And later ones are not batched
+        assertEquals(Arrays.asList(3L, 3L, 1L, 1L), published);
+        assertEquals(8, batcher.getBatchedObservations());
+        assertEquals(4, batcher.getPublishedBatches());
+    }
+
+    @Test
+    public void testBatchWindow() throws Exception {
+        Map<String, Long> published = new ConcurrentHashMap<>(); // Conversation -> batch size
+        Sofia2ObservationBatcher batcher = new Sofia2ObservationBatcher(100, 50, (conversationId, model) -> published.put(conversationId, model.size()));
+        batcher.add("conversation-1", observation(0));
+        batcher.add("conversation-1", observation(1));
+        batcher.add("conversation-2", observation(2));
+        assertTrue(published.isEmpty());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (published.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2L, (long) published.get("conversation-1"));
+        assertEquals(1L, (long) published.get("conversation-2"));
+        batcher.shutdown();
+        assertEquals(2, batcher.getPublishedBatches());
+    }
+
+    @Test
+    public void testBatchOrder() throws Exception {
+        int devices = 4;
+        int readings = 500;
+        List<List<Integer>> published = new ArrayList<>(); // Readings of each batch, in publication order
+        Sofia2ObservationBatcher batcher = new Sofia2ObservationBatcher(8, 1, (conversationId, model) -> {
+            if (ThreadLocalRandom.current().nextInt(4) == 0) Thread.sleep(1); // Let other batches try to overtake this one
+            List<Integer> batch = new ArrayList<>();
+            model.listSubjects().forEachRemaining(subject -> batch.add(readingOf(subject)));
+            synchronized (published) {
+                published.add(batch);
+            }
+        });
+
+        // One thread per device, as the lane workers of the pipeline. The timer flushes batches at the same time
+        ExecutorService executor = Executors.newFixedThreadPool(devices);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            int device = d;
+            tasks.add(executor.submit(() -> {
+                for (int i = 0; i < readings; i++) {
+                    batcher.add("conversation-1", observation(device * readings + i));
+                    if (i % 50 == 0) Thread.sleep(2);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+        batcher.shutdown();
+
+        // The readings of each device must be published in order, also across batches
+        int[] last = new int[devices];
+        Arrays.fill(last, -1);
+        int total = 0;
+        for (List<Integer> batch : published) {
+            for (int reading : batch) {
+                assertTrue("Reading " + reading + " published after a later reading", reading > last[reading / readings]);
+            }
+            for (int reading : batch) {
+                last[reading / readings] = Math.max(last[reading / readings], reading);
+            }
+            total += batch.size();
+        }
+        assertEquals(devices * readings, total);
+        assertEquals(devices * readings, batcher.getBatchedObservations());
+    }
+
+    static Model observation(int reading) {
+        Model model = ModelFactory.createDefaultModel();
+        model.add(model.createResource(OBSERVATION + reading), RDF.type, model.createResource("http://example.org/Observation"));
+        return model;
+    }
+
+    static int readingOf(Resource subject) {
+        return Integer.parseInt(subject.getURI().substring(OBSERVATION.length()));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the observation sent by the emulator for many devices through a partitioned pipeline.
+ */
+public class Sofia2ObservationPipelineTest {
+    private static final int LANES = 8;
+    private static final int DEVICES = 64;
+    private static final int READINGS = 200;
+    private static final Map<String, String> IDENTIFIER_FIELDS = Collections.singletonMap("SensorTermostato", "id");
+
+    @Test
+    public void testDeviceOrder() throws Exception {
+        String indication = Resources.toString(Resources.getResource("observations/example-indication.json"), Charsets.UTF_8);
+        JsonObject template = new JsonParser().parse(Sofia2SsapReader.observation(new ByteArrayInputStream(indication.getBytes(Charsets.UTF_8))).getData()).getAsJsonObject();
+
+        Map<String, List<Integer>> published = new ConcurrentHashMap<>(); // Device -> readings, in publication order
+        Set<String> workers = ConcurrentHashMap.newKeySet();
+        Sofia2ObservationPipeline pipeline = new Sofia2ObservationPipeline(DEVICES * READINGS, LANES, Sofia2ObservationPipeline.REJECT,
+                DEVICES * READINGS, Long.MAX_VALUE, 1, (conversationId, body) -> {
+                    published.computeIfAbsent(body.getIdentifier("SensorTermostato", "id"), id -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(Integer.valueOf(body.getIdentifier("SensorTermostato", "temp")));
+                    workers.add(Thread.currentThread().getName());
+                    if (ThreadLocalRandom.current().nextInt(10) == 0) Thread.sleep(1); // Let other lanes overtake this one
+                }, (conversationId, body) -> body.getDeviceKey(IDENTIFIER_FIELDS), false);
+
+        // Each producer sends the readings of its devices interleaved at random, as the callbacks of several subscriptions
+        int producers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            tasks.add(executor.submit(() -> {
+                Random random = new Random(producer);
+                int[] next = new int[DEVICES];
+                int remaining = DEVICES / producers * READINGS;
+                while (remaining > 0) {
+                    int device = producer + producers * random.nextInt(DEVICES / producers);
+                    if (next[device] == READINGS) continue;
+                    JsonObject observation = template.deepCopy();
+                    observation.getAsJsonObject("SensorTermostato").addProperty("id", device);
+                    observation.getAsJsonObject("SensorTermostato").addProperty("temp", next[device]++);
+                    assertEquals(Sofia2ObservationPipeline.Admission.ACCEPTED, pipeline.offer("conversation-" + producer, Sofia2Instance.parse(observation.toString())));
+                    remaining--;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (pipeline.getProcessed() < DEVICES * READINGS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pipeline.shutdown();
+
+        assertEquals(DEVICES * READINGS, pipeline.getProcessed());
+        assertEquals(0, pipeline.getFailed());
+        assertEquals(DEVICES, published.size());
+        for (Map.Entry<String, List<Integer>> device : published.entrySet()) {
+            List<Integer> readings = device.getValue();
+            assertEquals(READINGS, readings.size());
+            for (int i = 0; i < READINGS; i++) {
+                assertEquals("Reading of device " + device.getKey() + " out of order", i, (int) readings.get(i));
+            }
+        }
+        assertTrue(workers.size() > 1);
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        Sofia2ObservationPipeline pipeline = new Sofia2ObservationPipeline(10, 1, Sofia2ObservationPipeline.REJECT, 10, Long.MAX_VALUE, 1,
+                (conversationId, body) -> {
+                    Thread.sleep(50);
+                    if (body.getObjectId().equals("error")) throw new AssertionError("Not caught by Exception handlers");
+                    published.add(body.getObjectId());
+                }, null, false);
+        for (String id : new String[] {"1", "error", "2", "3"}) {
+            assertEquals(Sofia2ObservationPipeline.Admission.ACCEPTED, pipeline.offer("conversation-1", Sofia2Instance.parse("{\"_id\":{\"$oid\":\"" + id + "\"}}")));
+        }
+        pipeline.shutdown();
+
+        // The queued observations are published before the workers stop, and errors do not stop the worker
+        assertEquals("[1, 2, 3]", published.toString());
+        assertEquals(3, pipeline.getProcessed());
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(0, pipeline.getDropped());
+        assertEquals(0, pipeline.getInFlight());
+        assertEquals(Sofia2ObservationPipeline.Admission.REJECTED, pipeline.offer("conversation-1", Sofia2Instance.parse("{}")));
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        Sofia2ObservationPipeline pipeline = new Sofia2ObservationPipeline(10, 1, Sofia2ObservationPipeline.REJECT, 10, 18, 1,
+                (conversationId, body) -> { }, null, false);
+        // 19 bytes in UTF-8, although only 16 characters
+        assertEquals(Sofia2ObservationPipeline.Admission.THROTTLED, pipeline.offer("conversation-1", Sofia2Instance.parse("{\"t\":\"ºC ºC ºC\"}")));
+        assertEquals(Sofia2ObservationPipeline.Admission.ACCEPTED, pipeline.offer("conversation-1", Sofia2Instance.parse("{\"t\":\"C C C\"}")));
+        pipeline.shutdown();
+    }
+}
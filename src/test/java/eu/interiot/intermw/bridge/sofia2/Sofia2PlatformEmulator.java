@@ -18,9 +18,13 @@
  */
 package eu.interiot.intermw.bridge.sofia2;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -28,26 +32,43 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Service;
 
 import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Sofia2PlatformEmulator {
     private final Logger logger = LoggerFactory.getLogger(Sofia2Bridge.class);
-    private Map<String, Subscription> subscriptions = new HashMap<>();
-    private Map<String, Thread> subscriptionThreads = new HashMap<>();
+    // Active subscriptions (subscription id -> subscription)
+    private Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private Map<String, Thread> subscriptionThreads = new ConcurrentHashMap<>();
     private ObjectMapper objectMapper = new ObjectMapper();
     private int port;
-    private int observationsDelay;
+    private long observationsInterval;
+    private AtomicLong throttledCallbacks = new AtomicLong();
     private Service spark;
+    private boolean verbose = true;
+    // Ontology instances created with INSERT requests (ontology -> oid -> instance)
+    private Map<String, Map<String, ObjectNode>> instances = new ConcurrentHashMap<>();
 
     public Sofia2PlatformEmulator(int port, int observationsDelay) {
         this.port = port;
-        this.observationsDelay = observationsDelay;
+        this.observationsInterval = observationsDelay * 1000L;
     }
 
     public void start() throws Exception {
@@ -60,10 +81,10 @@ public class Sofia2PlatformEmulator {
             SsapInput input;
             try {
                 input = objectMapper.readValue(request.body(), SsapInput.class);
-                System.out.println("HTTP POST received");
-                System.out.println("***** BODY ****");
-                System.out.println(request.body());
-                System.out.println("*********");
+                print("HTTP POST received");
+                print("***** BODY ****");
+                print(request.body());
+                print("*********");
             } catch (Exception e) {
                 response.status(400);
                 return e.getMessage();
@@ -79,6 +100,9 @@ public class Sofia2PlatformEmulator {
             	logger.debug("LEAVE request.");
             }else{
             	logger.debug("INSERT request.");
+            	if (input.data != null) {
+            		insertInstances(input.ontology, input.data);
+            	}
             	URL url1 = Resources.getResource("observations/response-insert.json");
            	 	String platformResponseTemplate = Resources.toString(url1, Charsets.UTF_8);
            	 	platformResponse = platformResponseTemplate.replace("%ONTOLOGY%", input.ontology); 	
@@ -93,10 +117,10 @@ public class Sofia2PlatformEmulator {
             SsapInput input;
             try {
                 input = objectMapper.readValue(request.body(), SsapInput.class);
-                System.out.println("HTTP PUT received");
-                System.out.println("***** BODY ****");
-                System.out.println(request.body());
-                System.out.println("*********");
+                print("HTTP PUT received");
+                print("***** BODY ****");
+                print(request.body());
+                print("*********");
             } catch (Exception e) {
                 response.status(400);
                 return e.getMessage();
@@ -114,6 +138,32 @@ public class Sofia2PlatformEmulator {
             return platformResponse;
         });
         
+        spark.delete("sib/services/api_ssap/v01/SSAPResource/", (request, response) -> {
+            logger.debug("Received a DELETE request.");
+            SsapInput input;
+            try {
+                input = objectMapper.readValue(request.body(), SsapInput.class);
+            } catch (Exception e) {
+                response.status(400);
+                return e.getMessage();
+            }
+            
+            Map<String, ObjectNode> ontologyInstances = instances.get(input.ontology);
+            JsonNode data = objectMapper.readTree(input.data);
+            Iterable<JsonNode> removedInstances = data.isArray() ? data : Collections.singletonList(data);
+            for (JsonNode instance : removedInstances) {
+            	if (ontologyInstances != null) {
+            		ontologyInstances.remove(instance.path("_id").path("$oid").asText());
+            	}
+            }
+            
+            URL url1 = Resources.getResource("observations/response-insert.json");
+           	String platformResponse = Resources.toString(url1, Charsets.UTF_8);
+            response.header("Content-Type", "application/json;charset=UTF-8");
+            response.status(200);
+            return platformResponse;
+        });
+        
         spark.get("sib/services/api_ssap/v01/SSAPResource", (request, response) -> {
             logger.debug("Received QUERY request.");
             String query;
@@ -125,12 +175,12 @@ public class Sofia2PlatformEmulator {
                 sessionKey = request.queryParams("$sessionKey");
             	query = request.queryParams("$query");
             	ontology = request.queryParams("$ontology");
-            	System.out.println("**** RECEIVED QUERY REQUEST ****");
-            	System.out.println("Query parameters");
-                System.out.println("Ontology: " + ontology);
-                System.out.println("Query: " + query);
-                System.out.println("SessionKey: " + sessionKey);
-                System.out.println("*********");
+            	print("**** RECEIVED QUERY REQUEST ****");
+            	print("Query parameters");
+                print("Ontology: " + ontology);
+                print("Query: " + query);
+                print("SessionKey: " + sessionKey);
+                print("*********");
             } catch (Exception e) {
                 response.status(400);
                 return e.getMessage();
@@ -138,9 +188,19 @@ public class Sofia2PlatformEmulator {
             
             if(sessionKey == null || query == null){
             	response.status(400);
-            }else{ 	
-           	 	URL url1 = Resources.getResource("observations/response-query.json");
-           	 	platformResponse = Resources.toString(url1, Charsets.UTF_8);
+            }else{
+            	Map<String, ObjectNode> ontologyInstances = instances.get(ontologyOf(query));
+            	if (ontologyInstances != null && !ontologyInstances.isEmpty()) {
+            		// Instances inserted in the emulator
+            		ObjectNode queryResponse = objectMapper.createObjectNode();
+            		queryResponse.put("join", false);
+            		queryResponse.put("leave", false);
+            		queryResponse.put("data", findInstances(ontologyInstances, query).toString());
+            		platformResponse = queryResponse.toString();
+            	} else {
+            		URL url1 = Resources.getResource("observations/response-query.json");
+            		platformResponse = Resources.toString(url1, Charsets.UTF_8);
+            	}
            	 	response.header("Content-Type", "application/json;charset=UTF-8");
            	 	response.status(200);
             }
@@ -157,37 +217,34 @@ public class Sofia2PlatformEmulator {
             	sessionKey = request.queryParams("$sessionKey");
             	subscriptionQuery = request.queryParams("$query");
             	callbackUrl = request.queryParams("$endpoint");
-            	System.out.println("Subscription parameters");
-                System.out.println("Callback URL: " + callbackUrl);
-                System.out.println("Query: " + subscriptionQuery);
-                System.out.println("SessionKey: " + sessionKey);
-                System.out.println("*********");
+            	print("Subscription parameters");
+                print("Callback URL: " + callbackUrl);
+                print("Query: " + subscriptionQuery);
+                print("SessionKey: " + sessionKey);
+                print("*********");
             } catch (Exception e) {
                 response.status(400);
                 e.printStackTrace();
                 return e.getMessage();
             }
             
-//            if (subscriptions.containsKey(subscriptionQuery)) {
-            if (subscriptions.containsKey(sessionKey)) {
-                response.status(409);
-                return "Already subscribed.";
-            }
-
+            // Each subscription has its own id, so a session can hold many subscriptions
+            String subscriptionId = UUID.randomUUID().toString();
             Subscription subscription = new Subscription(subscriptionQuery, callbackUrl, sessionKey);
- //           subscriptions.put(subscriptionQuery, subscription);
-            subscriptions.put(sessionKey, subscription);
+            subscriptions.put(subscriptionId, subscription);
 
             ObservationsPublisher obsPublisher = new ObservationsPublisher(subscription);
             Thread obsPublisherThread = new Thread(obsPublisher);
             obsPublisherThread.start();
- //           subscriptionThreads.put(subscriptionQuery, obsPublisherThread);
-            subscriptionThreads.put(sessionKey, obsPublisherThread);
+            subscriptionThreads.put(subscriptionId, obsPublisherThread);
 
             logger.debug("Subscribed to thing '{}' with callback URL {}.", subscriptionQuery, callbackUrl);
             
-            URL url1 = Resources.getResource("observations/response-subscribe.json");
-       	 	String  platformResponse = Resources.toString(url1, Charsets.UTF_8);
+            ObjectNode subscribeResponse = objectMapper.createObjectNode();
+            subscribeResponse.put("join", false);
+            subscribeResponse.put("leave", false);
+            subscribeResponse.put("data", subscriptionId);
+            String platformResponse = subscribeResponse.toString();
        	 	response.header("Content-Type", "application/json;charset=UTF-8");
             response.status(200);
             return platformResponse;
@@ -200,21 +257,21 @@ public class Sofia2PlatformEmulator {
             try {
             	sessionKey = request.queryParams("$sessionKey");
             	subscriptionId = request.queryParams("$subscriptionId");
-            	System.out.println("Subscription parameters");
-                System.out.println("SubscriptionID: " + subscriptionId);
-                System.out.println("SessionKey: " + sessionKey);
-                System.out.println("*********");
+            	print("Subscription parameters");
+                print("SubscriptionID: " + subscriptionId);
+                print("SessionKey: " + sessionKey);
+                print("*********");
             } catch (Exception e) {
                 response.status(400);
                 return e.getMessage();
             }
             
-            subscriptions.remove(sessionKey);
+            subscriptions.remove(subscriptionId);
 
-            Thread obsPublisherThread = subscriptionThreads.get(sessionKey);
-            
-            obsPublisherThread.interrupt();
-            subscriptionThreads.remove(sessionKey);
+            Thread obsPublisherThread = subscriptionThreads.remove(subscriptionId);
+            if (obsPublisherThread != null) {
+                obsPublisherThread.interrupt();
+            }
 
             logger.debug("Unubscribed from '{}' ", subscriptionId);
             
@@ -224,6 +281,8 @@ public class Sofia2PlatformEmulator {
             response.status(200);
             return platformResponse;
         });
+        
+        spark.awaitInitialization();
     }
 
     public void stop() {
@@ -234,6 +293,179 @@ public class Sofia2PlatformEmulator {
         logger.debug("Sofia2PlatformEmulator has stoped.");
     }
 
+    /**
+     * Time between observations of each subscription, in ms. Short intervals can be used to load test the bridge.
+     */
+    public void setObservationsInterval(long observationsInterval) {
+        this.observationsInterval = observationsInterval;
+    }
+
+    /**
+     * Number of callbacks answered with 429 or 503 by the bridge.
+     */
+    public long getThrottledCallbacks() {
+        return throttledCallbacks.get();
+    }
+
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    private void print(String text) {
+        if (verbose) {
+            System.out.println(text);
+        }
+    }
+
+    private void insertInstances(String ontology, String data) throws Exception {
+        Map<String, ObjectNode> ontologyInstances = instances.computeIfAbsent(ontology,
+                key -> Collections.synchronizedMap(new LinkedHashMap<String, ObjectNode>()));
+        JsonNode dataNode = objectMapper.readTree(data);
+        Iterable<JsonNode> newInstances = dataNode.isArray() ? dataNode : Collections.singletonList(dataNode);
+        for (JsonNode instance : newInstances) {
+            String oid = UUID.randomUUID().toString().replace("-", "").substring(0, 24);
+            ObjectNode storedInstance = objectMapper.createObjectNode();
+            storedInstance.putObject("_id").put("$oid", oid);
+            ObjectNode contextData = storedInstance.putObject("contextData");
+            contextData.put("user", "emulator");
+            contextData.put("kp", "emulator");
+            contextData.putObject("timestamp").put("$date", Instant.now().toString());
+            Iterator<Map.Entry<String, JsonNode>> fields = instance.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!field.getKey().equals("_id") && !field.getKey().equals("contextData")) {
+                    storedInstance.set(field.getKey(), field.getValue());
+                }
+            }
+            ontologyInstances.put(oid, storedInstance);
+        }
+    }
+
+    private static String ontologyOf(String query) {
+        Matcher matcher = Pattern.compile("^db\\.([^.]+)\\.find").matcher(query.trim());
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    /**
+     * Evaluates a native query: db.Ontology.find(filter, projection).sort(...).skip(n).limit(n)
+     * Supports equality, $in, $gt and $gte conditions.
+     */
+    private ArrayNode findInstances(Map<String, ObjectNode> ontologyInstances, String query) throws Exception {
+        String ontology = ontologyOf(query);
+        int start = query.indexOf(".find(") + ".find(".length();
+        int depth = 1;
+        int end = start;
+        boolean quoted = false;
+        while (depth > 0) {
+            char c = query.charAt(end++);
+            if (c == '"' && query.charAt(end - 2) != '\\') quoted = !quoted;
+            else if (!quoted && c == '(') depth++;
+            else if (!quoted && c == ')') depth--;
+        }
+        JsonNode arguments = objectMapper.readTree("[" + query.substring(start, end - 1) + "]");
+        JsonNode filter = arguments.path(0);
+        JsonNode projection = arguments.path(1);
+        String modifiers = query.substring(end);
+
+        List<ObjectNode> matches = new ArrayList<>();
+        synchronized (ontologyInstances) {
+            for (ObjectNode instance : ontologyInstances.values()) {
+                if (matches(instance, ontology, filter)) {
+                    matches.add(instance);
+                }
+            }
+        }
+
+        Matcher sort = Pattern.compile("\\.sort\\((\\{[^)]*\\})\\)").matcher(modifiers);
+        if (sort.find()) {
+            Map.Entry<String, JsonNode> sortField = objectMapper.readTree(sort.group(1)).fields().next();
+            int direction = sortField.getValue().asInt();
+            matches.sort((a, b) -> direction * comparable(valueOf(a, ontology, sortField.getKey()))
+                    .compareTo(comparable(valueOf(b, ontology, sortField.getKey()))));
+        }
+        Matcher skip = Pattern.compile("\\.skip\\((\\d+)\\)").matcher(modifiers);
+        int from = skip.find() ? Math.min(Integer.parseInt(skip.group(1)), matches.size()) : 0;
+        Matcher limit = Pattern.compile("\\.limit\\((\\d+)\\)").matcher(modifiers);
+        int to = limit.find() ? Math.min(from + Integer.parseInt(limit.group(1)), matches.size()) : matches.size();
+
+        ArrayNode result = objectMapper.createArrayNode();
+        for (ObjectNode instance : matches.subList(from, to)) {
+            if (projection.size() == 0) {
+                result.add(instance);
+                continue;
+            }
+            ObjectNode projected = objectMapper.createObjectNode();
+            projected.set("_id", instance.get("_id"));
+            Iterator<String> paths = projection.fieldNames();
+            while (paths.hasNext()) {
+                String[] path = paths.next().split("\\.");
+                JsonNode value = instance;
+                ObjectNode target = projected;
+                for (int i = 0; i < path.length - 1; i++) {
+                    value = value.path(path[i]);
+                    target = target.has(path[i]) ? (ObjectNode) target.get(path[i]) : target.putObject(path[i]);
+                }
+                if (!value.path(path[path.length - 1]).isMissingNode()) {
+                    target.set(path[path.length - 1], value.get(path[path.length - 1]));
+                }
+            }
+            result.add(projected);
+        }
+        return result;
+    }
+
+    private static boolean matches(ObjectNode instance, String ontology, JsonNode filter) {
+        Iterator<Map.Entry<String, JsonNode>> conditions = filter.fields();
+        while (conditions.hasNext()) {
+            Map.Entry<String, JsonNode> condition = conditions.next();
+            JsonNode value = valueOf(instance, ontology, condition.getKey());
+            JsonNode expected = condition.getValue();
+            if (expected.has("$in")) {
+                boolean found = false;
+                for (JsonNode option : expected.get("$in")) {
+                    found = found || sameValue(value, option);
+                }
+                if (!found) return false;
+            } else if (expected.has("$gt") || expected.has("$gte")) {
+                JsonNode bound = expected.has("$gt") ? expected.get("$gt") : expected.get("$gte");
+                int comparison = comparable(value).compareTo(comparable(bound));
+                if (comparison < 0 || (comparison == 0 && expected.has("$gt"))) return false;
+            } else if (!sameValue(value, expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Fields are searched in the instance first and then in the ontology object
+    private static JsonNode valueOf(ObjectNode instance, String ontology, String path) {
+        JsonNode value = instance;
+        for (String field : path.split("\\.")) {
+            value = value.path(field);
+        }
+        if (value.isMissingNode() && !path.startsWith(ontology + ".")) {
+            return valueOf(instance, ontology, ontology + "." + path);
+        }
+        return value;
+    }
+
+    private static String comparable(JsonNode value) {
+        if (value.has("$date")) return value.get("$date").asText();
+        if (value.has("$oid")) return value.get("$oid").asText();
+        return value.asText();
+    }
+
+    private static boolean sameValue(JsonNode value, JsonNode expected) {
+        if (expected.has("$oid")) {
+            return expected.get("$oid").asText().equals(value.path("$oid").asText());
+        }
+        return !value.isMissingNode() && value.asText().equals(expected.asText());
+    }
+
     public static void main(String[] args) throws Exception {
         new Sofia2PlatformEmulator(4568, 10).start();
     }
@@ -264,18 +496,30 @@ public class Sofia2PlatformEmulator {
                     HttpEntity httpEntity = new StringEntity(observation, ContentType.getByMimeType("application/json"));
                     httpPost.setEntity(httpEntity);
                     HttpResponse response = httpClient.execute(httpPost);
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    EntityUtils.consumeQuietly(response.getEntity());
                     logger.debug("Observation for thing {} has been sent to {}.", subscription.getSubscriptionQuery(),
                             subscription.getCallbackUrl());
-                    if(response.getStatusLine().getStatusCode() == 200){
-                    	System.out.println("Observation has been sent to the bridge:");
-                    	System.out.println(observation);
+                    if(statusCode == 200){
+                    	print("Observation has been sent to the bridge:");
+                    	print(observation);
+                    }else if(statusCode == 429 || statusCode == 503){
+                    	// The bridge is overloaded. Send the same observation again after the time it asks for
+                    	throttledCallbacks.incrementAndGet();
+                    	Header retryAfter = response.getFirstHeader("Retry-After");
+                    	long delay = retryAfter != null ? Long.parseLong(retryAfter.getValue()) * 1000 : observationsInterval;
+                    	print("Bridge overloaded (" + statusCode + "). Retrying in " + delay + " ms");
+                    	Thread.sleep(delay);
+                    	continue;
                     }
+                } catch (InterruptedException e) {
+                    break;
                 } catch (Exception e) {
                     logger.error("Failed to send observation to {}.", subscription.getCallbackUrl());
                     e.printStackTrace();
                 }
                 try {
-                    Thread.sleep(observationsDelay * 1000);
+                    Thread.sleep(observationsInterval);
                 } catch (InterruptedException e) {
                     break;
                 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Polls an ontology kept in memory by a client that runs the queries of the poller.
+ */
+public class Sofia2PollerTest {
+    private static final String[] DEVICE = {"Sensor", "id", "1"};
+    private final List<String> delivered = new CopyOnWriteArrayList<>(); // "conversationId:oid" of each delivery
+    private MemoryClient client;
+    private Path directory;
+    private Sofia2Poller poller;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new MemoryClient();
+        directory = Files.createTempDirectory("sofia2-poller");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (poller != null) poller.shutdown();
+        client.close();
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testEqualTimestamps() throws Exception {
+        client.add("a0", "2020-01-01T00:00:00.000Z"); // Before the subscription, not delivered
+        poller = poller(null, (conversationId, observation) -> accept(conversationId, observation));
+        poller.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        waitFor(() -> client.queries.get() > 0);
+
+        // More instances with the same timestamp than fit in a page
+        for (int i = 1; i <= 7; i++) {
+            client.add("b" + i, "2020-01-01T00:00:01.000Z");
+        }
+        client.add("c1", "2020-01-01T00:00:02.000Z");
+        waitFor(() -> delivered.size() >= 8);
+        Thread.sleep(100); // Later polls must not deliver them again
+
+        assertEquals(Arrays.asList("conversation-1:b1", "conversation-1:b2", "conversation-1:b3", "conversation-1:b4",
+                "conversation-1:b5", "conversation-1:b6", "conversation-1:b7", "conversation-1:c1"), delivered);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        AtomicInteger rejections = new AtomicInteger(2);
+        poller = poller(null, (conversationId, observation) -> {
+            if (conversationId.equals("conversation-2") && rejections.getAndDecrement() > 0) {
+                return new Sofia2CallbackDispatcher.CallbackResult(503, 0); // Queue full
+            }
+            return accept(conversationId, observation);
+        });
+        poller.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        poller.subscribe("conversation-2", Collections.singletonList(DEVICE));
+        waitFor(() -> client.queries.get() > 0);
+
+        client.add("b1", "2020-01-01T00:00:01.000Z");
+        client.add("b2", "2020-01-01T00:00:01.000Z");
+        waitFor(() -> delivered.size() >= 4);
+        Thread.sleep(100);
+
+        // conversation-1 accepted b1 at once, and it is not delivered again while conversation-2 rejects it
+        assertEquals(Arrays.asList("conversation-1:b1", "conversation-2:b1", "conversation-1:b2", "conversation-2:b2"), delivered);
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Path watermarks = directory.resolve("watermarks.properties");
+        poller = poller(watermarks, (conversationId, observation) -> accept(conversationId, observation));
+        poller.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        waitFor(() -> client.queries.get() > 0);
+        client.add("b1", "2020-01-01T00:00:01.000Z");
+        client.add("b2", "2020-01-01T00:00:01.000Z");
+        waitFor(() -> delivered.size() >= 2 && Files.exists(watermarks)); // Saved when the poll ends
+        poller.clear();
+        poller.shutdown();
+
+        // Instances added while the bridge was stopped, some with the timestamp of the watermark
+        client.add("b3", "2020-01-01T00:00:01.000Z");
+        client.add("c1", "2020-01-01T00:00:02.000Z");
+        delivered.clear();
+        poller = poller(watermarks, (conversationId, observation) -> accept(conversationId, observation));
+        poller.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        waitFor(() -> delivered.size() >= 2);
+        Thread.sleep(100);
+
+        assertEquals(Arrays.asList("conversation-1:b3", "conversation-1:c1"), delivered);
+    }
+
+    private Sofia2Poller poller(Path watermarks, Sofia2SubscriptionMultiplexer.ObservationTarget target) throws Exception {
+        return new Sofia2Poller(client, target, 2, 5, 20, 1, watermarks);
+    }
+
+    private Sofia2CallbackDispatcher.CallbackResult accept(String conversationId, Sofia2Instance observation) {
+        delivered.add(conversationId + ":" + observation.getObjectId());
+        return Sofia2CallbackDispatcher.CallbackResult.OK;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Runs the find queries of the poller against a list of instances.
+     */
+    private static class MemoryClient extends Sofia2Client {
+        private static final Pattern FROM = Pattern.compile("\"\\$gte\":\\{\"\\$date\":\"([^\"]+)\"");
+        private static final Pattern LIMIT = Pattern.compile("\\.limit\\((\\d+)\\)");
+        private final List<String[]> instances = new ArrayList<>(); // {oid, timestamp}, in insertion order
+        final AtomicInteger queries = new AtomicInteger();
+
+        MemoryClient() throws Exception {
+            super(properties(), "http://localhost:4570/");
+        }
+
+        private static Properties properties() {
+            Properties properties = new Properties();
+            properties.setProperty("token", "test");
+            properties.setProperty("KP", "test");
+            return properties;
+        }
+
+        synchronized void add(String oid, String timestamp) {
+            instances.add(new String[] {oid, timestamp});
+        }
+
+        @Override
+        int find(String ontName, String query, InstanceHandler handler) throws Exception {
+            List<String[]> result;
+            synchronized (this) {
+                result = new ArrayList<>(instances);
+            }
+            Comparator<String[]> order = Comparator.comparing(instance -> instance[1]);
+            if (query.contains("\"contextData.timestamp\":-1")) { // Most recent instance
+                result.sort(order.reversed());
+            } else {
+                Matcher from = FROM.matcher(query);
+                if (from.find()) result.removeIf(instance -> instance[1].compareTo(from.group(1)) < 0);
+                result.sort(order);
+            }
+            Matcher limit = LIMIT.matcher(query);
+            if (limit.find()) result = result.subList(0, Math.min(result.size(), Integer.parseInt(limit.group(1))));
+            for (String[] instance : result) {
+                handler.handle(Sofia2Instance.parse("{\"_id\":{\"$oid\":\"" + instance[0] + "\"},\"contextData\":{\"timestamp\":{\"$date\":\"" + instance[1]
+                        + "\"}},\"Sensor\":{\"id\":\"1\"}}"));
+            }
+            queries.incrementAndGet();
+            return result.size();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Opens sessions with a joiner that hands out numbered session keys.
+ */
+public class Sofia2SessionManagerTest {
+    private final List<String> joins = new CopyOnWriteArrayList<>(); // Current key sent in each JOIN
+    private Sofia2SessionManager session;
+
+    @After
+    public void tearDown() {
+        if (session != null) session.shutdown();
+    }
+
+    @Test
+    public void testSingleFlightRejoin() throws Exception {
+        session = new Sofia2SessionManager(currentKey -> {
+            joins.add(String.valueOf(currentKey));
+            Thread.sleep(50); // Give the other threads time to ask for a rejoin
+            return "key-" + joins.size();
+        }, 0);
+        session.join();
+        assertEquals("key-1", session.getSessionKey());
+
+        // Requests sent concurrently with the same key are all rejected with 401
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> requests = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            requests.add(executor.submit(() -> {
+                String key = session.getSessionKey();
+                start.await();
+                Sofia2HttpException rejected = new Sofia2HttpException(401);
+                assertTrue(Sofia2SessionManager.isSessionError(rejected));
+                return session.rejoin(key);
+            }));
+        }
+        start.countDown();
+        for (Future<String> request : requests) {
+            assertEquals("key-2", request.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(2, joins.size()); // Only one thread joined again
+        assertEquals("null", joins.get(1)); // With a new session
+        assertEquals(1, session.getRejoins());
+    }
+
+    @Test
+    public void testSessionErrors() {
+        assertTrue(Sofia2SessionManager.isSessionError(new Sofia2HttpException(403)));
+        assertFalse(Sofia2SessionManager.isSessionError(new Sofia2HttpException(500)));
+        assertFalse(Sofia2SessionManager.isSessionError(new IllegalStateException()));
+    }
+
+    @Test
+    public void testRefreshAndLeave() throws Exception {
+        List<String> left = new ArrayList<>();
+        session = new Sofia2SessionManager(currentKey -> {
+            joins.add(String.valueOf(currentKey));
+            if (joins.size() == 3) throw new Sofia2HttpException(401); // Expired before the refresh
+            return "key-" + joins.size();
+        }, 20);
+        assertNull(session.getSessionKey());
+        session.join();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (joins.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        session.leave(left::add);
+        // Refreshes send the current key. A failed refresh opens a new session
+        assertEquals("[null, key-1, key-2, null, key-4]", joins.subList(0, 5).toString());
+        assertTrue(session.getRefreshes() >= 2);
+        assertEquals(1, session.getRejoins());
+        assertEquals(1, left.size());
+        assertNull(session.getSessionKey());
+
+        int joinCount = joins.size();
+        Thread.sleep(100);
+        assertEquals(joinCount, joins.size()); // No refreshes after leave
+        try {
+            session.rejoin(left.get(0));
+            fail("Rejoin should fail after leave");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes subscriptions to a journal file and reads them back as the bridge does after a restart.
+ */
+public class Sofia2SubscriptionJournalTest {
+    private static final String CALLBACK = "http://localhost:4568/sofia2/";
+    private Path directory;
+    private Path path;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("sofia2-journal");
+        path = directory.resolve("subscriptions.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        Sofia2SubscriptionJournal journal = new Sofia2SubscriptionJournal(path);
+        journal.subscribed("conversation-1", Arrays.asList("device-1", "device-2"), Arrays.asList("sub-1", "sub-2"), CALLBACK + "conversation-1");
+        journal.subscribed("conversation-2", Arrays.asList("device-3"), Arrays.asList("sub-3"), CALLBACK + "conversation-2");
+        journal.updateSubscriptionIds("conversation-1", Arrays.asList("sub-1", "sub-4"));
+        journal.subscribed("conversation-3", Arrays.asList("device-4"), Arrays.asList("sub-5"), CALLBACK + "conversation-3");
+        journal.unsubscribed("conversation-2");
+        journal.close();
+
+        journal = reopen();
+        List<Sofia2SubscriptionJournal.Entry> entries = journal.getEntries();
+        journal.close();
+        assertEquals(2, entries.size());
+        assertEquals("conversation-1", entries.get(0).conversationId);
+        assertEquals(Arrays.asList("device-1", "device-2"), entries.get(0).deviceIds);
+        assertEquals(Arrays.asList("sub-1", "sub-4"), entries.get(0).subscriptionIds);
+        assertEquals(CALLBACK + "conversation-1", entries.get(0).callback);
+        assertEquals("conversation-3", entries.get(1).conversationId);
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        Sofia2SubscriptionJournal journal = new Sofia2SubscriptionJournal(path);
+        journal.subscribed("conversation-1", Arrays.asList("device-1"), Arrays.asList("sub-1"), CALLBACK + "conversation-1");
+        journal.close();
+
+        // A crash after the length was written, before the whole record was: the record is ignored
+        int end = endOf(path);
+        byte[] record = "{\"op\":\"unsubscribe\",\"conversationId\":\"conversation-1\"}".getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(4 + record.length / 2);
+            torn.putInt(record.length).put(record, 0, record.length / 2).flip();
+            channel.write(torn, end);
+        }
+
+        journal = reopen();
+        assertEquals(1, journal.getEntries().size());
+        assertEquals(Collections.singletonList("sub-1"), journal.getEntries().get(0).subscriptionIds);
+        // New records replace the torn one
+        journal.subscribed("conversation-2", Arrays.asList("device-2"), Arrays.asList("sub-2"), CALLBACK + "conversation-2");
+        journal.close();
+        journal = reopen();
+        assertEquals(2, journal.getEntries().size());
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Sofia2SubscriptionJournal journal = new Sofia2SubscriptionJournal(path);
+        journal.subscribed("conversation-0", Arrays.asList("device-0"), Arrays.asList("sub-0"), CALLBACK + "conversation-0");
+        for (int i = 1; i <= 3000; i++) {
+            if (i % 2 == 1) {
+                journal.subscribed("conversation-1", Arrays.asList("device-" + i), Arrays.asList("sub-" + i), CALLBACK + "conversation-1");
+            } else {
+                journal.unsubscribed("conversation-1");
+            }
+        }
+        // 3001 records were written. The journal was compacted when it exceeded 1024
+        assertTrue("Journal not compacted: " + records(path) + " records", records(path) <= 1024);
+        journal.close();
+
+        journal = reopen();
+        List<Sofia2SubscriptionJournal.Entry> entries = journal.getEntries();
+        journal.close();
+        assertEquals(1, entries.size());
+        assertEquals("conversation-0", entries.get(0).conversationId);
+        assertEquals(1, records(path)); // The journal is also compacted when it is loaded
+    }
+
+    @Test
+    public void testPeriodicCompaction() throws Exception {
+        Sofia2SubscriptionJournal journal = new Sofia2SubscriptionJournal(path, 50);
+        journal.subscribed("conversation-1", Arrays.asList("device-1"), Arrays.asList("sub-1"), CALLBACK + "conversation-1");
+        journal.subscribed("conversation-2", Arrays.asList("device-2"), Arrays.asList("sub-2"), CALLBACK + "conversation-2");
+        journal.unsubscribed("conversation-2");
+
+        // Far below the record threshold, the journal is compacted by the periodic check
+        long deadline = System.currentTimeMillis() + 5000;
+        while (records(path) > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, records(path));
+        journal.subscribed("conversation-3", Arrays.asList("device-3"), Arrays.asList("sub-3"), CALLBACK + "conversation-3");
+        journal.close();
+
+        journal = reopen();
+        assertEquals(2, journal.getEntries().size());
+        journal.close();
+    }
+
+    private Sofia2SubscriptionJournal reopen() throws Exception {
+        return new Sofia2SubscriptionJournal(path);
+    }
+
+    // Number of records before the end mark
+    private static int records(Path path) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int records = 0;
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) break;
+            buffer.position(buffer.position() + length);
+            records++;
+        }
+        return records;
+    }
+
+    // Position of the end mark
+    private static int endOf(Path path) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) return start;
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+}
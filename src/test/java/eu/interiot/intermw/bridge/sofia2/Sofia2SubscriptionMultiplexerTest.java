@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Subscribes conversations to the devices of one ontology through a client that answers when the test allows it.
+ */
+public class Sofia2SubscriptionMultiplexerTest {
+    private static final String CALLBACK_KEY = "test-SensorTermostato-id";
+    private static final String[] DEVICE = {"SensorTermostato", "id", "1"}; // Device of the example indication
+    private final Sofia2CallbackDispatcher dispatcher = new Sofia2CallbackDispatcher();
+    private final List<String> delivered = new CopyOnWriteArrayList<>(); // Conversations that received the indication
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private BlockingClient client;
+    private Sofia2AsyncClient asyncClient;
+    private Sofia2SubscriptionMultiplexer multiplexer;
+    private String indication;
+
+    @Before
+    public void setUp() throws Exception {
+        indication = Resources.toString(Resources.getResource("observations/example-indication.json"), Charsets.UTF_8);
+        client = new BlockingClient();
+        asyncClient = new Sofia2AsyncClient(client, 4, 0, 1);
+        multiplexer = new Sofia2SubscriptionMultiplexer(asyncClient, dispatcher, new URL("http://localhost:4568/"), "test-",
+                (conversationId, observation) -> {
+                    delivered.add(conversationId);
+                    return Sofia2CallbackDispatcher.CallbackResult.OK;
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        asyncClient.shutdown();
+        client.close();
+    }
+
+    @Test
+    public void testPendingSubscription() throws Exception {
+        Future<?> first = executor.submit(() -> { multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE)); return null; });
+        assertTrue(client.subscribing.await(5, TimeUnit.SECONDS));
+        Future<?> second = executor.submit(() -> { multiplexer.subscribe("conversation-2", Collections.singletonList(DEVICE)); return null; });
+
+        // Indications are delivered while SOFIA2 has not answered the subscription
+        Future<?> dispatch = executor.submit(() -> dispatcher.dispatch(CALLBACK_KEY, ByteBuffer.wrap(indication.getBytes(Charsets.UTF_8))));
+        dispatch.get(5, TimeUnit.SECONDS);
+        assertFalse(first.isDone());
+
+        client.answer.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(1, client.subscriptions.size()); // The second conversation joined the pending subscription
+        assertEquals(1, multiplexer.getSubscriptionCount());
+
+        delivered.clear();
+        dispatcher.dispatch(CALLBACK_KEY, ByteBuffer.wrap(indication.getBytes(Charsets.UTF_8)));
+        assertEquals(2, delivered.size());
+    }
+
+    @Test
+    public void testUnsubscribe() throws Exception {
+        client.answer.countDown();
+        multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        multiplexer.subscribe("conversation-2", Collections.singletonList(DEVICE));
+
+        multiplexer.unsubscribe("conversation-1");
+        assertTrue(client.unsubscriptions.isEmpty()); // Still used by conversation-2
+        multiplexer.unsubscribe("conversation-2");
+        assertEquals(client.subscriptions, client.unsubscriptions);
+        assertEquals(0, multiplexer.getSubscriptionCount());
+        assertEquals(0, dispatcher.size());
+    }
+
+    @Test
+    public void testSubscribeFailure() throws Exception {
+        client.answer.countDown();
+        client.failures = 1;
+        try {
+            multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE));
+            fail("Subscribe should have failed");
+        } catch (Sofia2HttpException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        assertEquals(0, multiplexer.getSubscriptionCount());
+        assertEquals(0, dispatcher.size());
+
+        // The next subscribe creates the subscription again
+        multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        assertEquals(1, multiplexer.getSubscriptionCount());
+        multiplexer.unsubscribe("conversation-1");
+        assertEquals(client.subscriptions, client.unsubscriptions);
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        client.answer.countDown();
+        multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        multiplexer.subscribe("conversation-2", Arrays.asList(DEVICE, new String[] {"SensorTermostato", "id", "2"}));
+        multiplexer.subscribe("conversation-3", Collections.singletonList(DEVICE)); // No new device, the filter is kept
+
+        // A new device replaces the subscription, and the replaced one is removed
+        assertEquals(Arrays.asList("[1]", "[1, 2]"), client.filters);
+        assertEquals(Collections.singletonList("SensorTermostato-0"), client.unsubscriptions);
+        assertEquals(1, multiplexer.getSubscriptionCount());
+
+        // Device 2 is no longer subscribed
+        multiplexer.unsubscribe("conversation-2");
+        assertEquals(Arrays.asList("[1]", "[1, 2]", "[1]"), client.filters);
+        assertEquals(Arrays.asList("SensorTermostato-0", "SensorTermostato-1"), client.unsubscriptions);
+    }
+
+    @Test
+    public void testPartialDelivery() throws Exception {
+        client.answer.countDown();
+        AtomicInteger rejections = new AtomicInteger(1);
+        multiplexer = new Sofia2SubscriptionMultiplexer(asyncClient, dispatcher, new URL("http://localhost:4568/"), "test-",
+                (conversationId, observation) -> {
+                    if (conversationId.equals("conversation-2") && rejections.getAndDecrement() > 0) {
+                        return new Sofia2CallbackDispatcher.CallbackResult(503, 1); // Queue full
+                    }
+                    delivered.add(conversationId);
+                    return Sofia2CallbackDispatcher.CallbackResult.OK;
+                });
+        multiplexer.subscribe("conversation-1", Collections.singletonList(DEVICE));
+        multiplexer.subscribe("conversation-2", Collections.singletonList(DEVICE));
+
+        assertEquals(503, dispatcher.dispatch(CALLBACK_KEY, ByteBuffer.wrap(indication.getBytes(Charsets.UTF_8))).status);
+        assertEquals(Collections.singletonList("conversation-1"), delivered);
+        // SOFIA2 sends the indication again. Only the conversation that rejected it receives it
+        assertEquals(200, dispatcher.dispatch(CALLBACK_KEY, ByteBuffer.wrap(indication.getBytes(Charsets.UTF_8))).status);
+        assertEquals(Arrays.asList("conversation-1", "conversation-2"), delivered);
+    }
+
+    /**
+     * Answers subscribe requests once the answer latch is released.
+     */
+    private static class BlockingClient extends Sofia2Client {
+        final CountDownLatch subscribing = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        final List<String> subscriptions = new CopyOnWriteArrayList<>();
+        final List<String> unsubscriptions = new CopyOnWriteArrayList<>();
+        final List<String> filters = new CopyOnWriteArrayList<>(); // Identifiers of each subscription
+        volatile int failures; // Number of subscribe requests that fail
+
+        BlockingClient() throws Exception {
+            super(properties(), "http://localhost:4570/");
+        }
+
+        private static Properties properties() {
+            Properties properties = new Properties();
+            properties.setProperty("token", "test");
+            properties.setProperty("KP", "test");
+            return properties;
+        }
+
+        @Override
+        String subscribe(String ontName, String fieldName, Collection<String> fieldValues, String callback) throws Exception {
+            subscribing.countDown();
+            answer.await();
+            if (failures > 0) {
+                failures--;
+                throw new Sofia2HttpException(500);
+            }
+            String subscriptionId = ontName + "-" + subscriptions.size();
+            subscriptions.add(subscriptionId);
+            filters.add(new TreeSet<>(fieldValues).toString());
+            return subscriptionId;
+        }
+
+        @Override
+        String unsubscribe(String id) throws Exception {
+            unsubscriptions.add(id);
+            return "unsubscribed";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.intermw.bridge.sofia2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends indications to a watchdog with a short silence limit and records the resubscriptions it makes.
+ * The watchdog checks the subscriptions once per second.
+ */
+public class Sofia2SubscriptionWatchdogTest {
+    private static final String[] DEVICE_1 = {"Sensor", "id", "1"};
+    private static final String[] DEVICE_2 = {"Sensor", "id", "2"};
+    private final List<String> resubscribed = new CopyOnWriteArrayList<>(); // "conversationId staleSubscriptionId"
+    private Sofia2SubscriptionWatchdog watchdog;
+
+    @After
+    public void tearDown() {
+        watchdog.shutdown();
+    }
+
+    @Test
+    public void testResubscribe() throws Exception {
+        watchdog = new Sofia2SubscriptionWatchdog(2, 100, 0, (conversationId, thingId, staleSubscriptionId) -> {
+            resubscribed.add(conversationId + " " + staleSubscriptionId);
+            if (thingId[2].equals("2")) throw new Sofia2HttpException(500);
+            return "sub-1b";
+        });
+        watchdog.watch("conversation-1", DEVICE_1, "sub-1");
+        watchdog.watch("conversation-1", DEVICE_2, "sub-2");
+        for (int i = 0; i < 4; i++) { // Enough samples to learn the interval
+            Thread.sleep(20);
+            watchdog.indication("conversation-1", "Sensor/1");
+            watchdog.indication("conversation-1", "Sensor/2");
+        }
+
+        // Both devices stop sending
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resubscribed.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(2, resubscribed.size());
+        assertTrue(resubscribed.contains("conversation-1 sub-1"));
+        assertTrue(resubscribed.contains("conversation-1 sub-2"));
+        assertEquals(1, watchdog.getResubscriptions());
+        assertEquals(1, watchdog.getFailedResubscriptions());
+    }
+
+    @Test
+    public void testNotStale() throws Exception {
+        watchdog = new Sofia2SubscriptionWatchdog(2, 100, 0, (conversationId, thingId, staleSubscriptionId) -> {
+            resubscribed.add(conversationId + " " + staleSubscriptionId);
+            return staleSubscriptionId + "b";
+        });
+        watchdog.watch("conversation-1", DEVICE_1, "sub-1"); // Keeps sending
+        watchdog.watch("conversation-1", DEVICE_2, "sub-2"); // Too few samples: the device may never send
+        watchdog.watch("conversation-2", DEVICE_1, "sub-3"); // Unsubscribed
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(20);
+            watchdog.indication("conversation-1", "Sensor/1");
+            watchdog.indication("conversation-2", "Sensor/1");
+        }
+        watchdog.indication("conversation-1", "Sensor/2");
+        watchdog.unwatch("conversation-2");
+        watchdog.indication("conversation-2", "Sensor/1"); // Ignored
+
+        long end = System.currentTimeMillis() + 2500;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+            watchdog.indication("conversation-1", "Sensor/1");
+        }
+        assertTrue("Unexpected resubscriptions: " + resubscribed, resubscribed.isEmpty());
+        assertEquals(2, watchdog.getWatchCount());
+    }
+}
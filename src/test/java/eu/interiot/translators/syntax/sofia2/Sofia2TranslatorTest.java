@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.translators.syntax.sofia2;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Sofia2TranslatorTest {
+
+    @Test
+    public void testStreamingTranslation() throws Exception {
+        File[] jsonFiles = new File("src/test/resources/SOFIA2").listFiles((dir, name) -> name.toLowerCase().endsWith(".json"));
+        assertTrue(jsonFiles.length > 0);
+
+        Sofia2Translator translator = new Sofia2Translator();
+        for (File f : jsonFiles) {
+            String json = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+            Model expected = Sofia2TreeTranslation.toJenaModel(json);
+
+            Model fromString = translator.toJenaModel(json);
+            assertEquals(f.getName(), expected.size(), fromString.size());
+            assertTrue(f.getName(), expected.isIsomorphicWith(fromString));
+
+            // Tokens read beforehand, as the bridge does with the instances it receives
+            TokenBuffer tokens = new TokenBuffer(null, false);
+            try (JsonParser parser = new JsonFactory().createParser(json)) {
+                parser.nextToken();
+                tokens.copyCurrentStructure(parser);
+            }
+            assertTrue(f.getName(), expected.isIsomorphicWith(translator.toJenaModel(tokens.asParser())));
+        }
+    }
+
+    @Test
+    public void testSharedTranslator() throws Exception {
+        File[] jsonFiles = new File("src/test/resources/SOFIA2").listFiles((dir, name) -> name.toLowerCase().endsWith(".json"));
+        List<String> documents = new ArrayList<>();
+        List<Model> expected = new ArrayList<>();
+        List<String> expectedJson = new ArrayList<>();
+        for (File f : jsonFiles) {
+            String json = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+            documents.add(json);
+            expected.add(new Sofia2Translator().toJenaModel(json));
+            expectedJson.add(new Sofia2Translator().toFormatX(expected.get(expected.size() - 1)));
+        }
+
+        // All the threads translate every document, in both directions, with the same translator
+        Sofia2Translator translator = new Sofia2Translator();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            tasks.add(executor.submit((Callable<Void>) () -> {
+                for (int i = 0; i < 200; i++) {
+                    int d = i % documents.size();
+                    assertTrue(jsonFiles[d].getName(), expected.get(d).isIsomorphicWith(translator.toJenaModel(documents.get(d))));
+                    assertEquals(jsonFiles[d].getName(), expectedJson.get(d), translator.toFormatX(expected.get(d)));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTopLevelEntities() throws Exception {
+        String json = new String(Files.readAllBytes(new File("src/test/resources/SOFIA2/Instance.json").toPath()), StandardCharsets.UTF_8);
+        Sofia2Translator translator = new Sofia2Translator();
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode instance = mapper.readTree(translator.toFormatX(translator.toJenaModel(json)));
+
+        // Resources without SOFIA2 types or properties are not translated
+        Model model = translator.toJenaModel(json);
+        model.createResource("http://example.org/other").addProperty(RDFS.label, "other");
+        assertEquals(instance, mapper.readTree(translator.toFormatX(model)));
+
+        // Several top-level entities are translated as an array
+        model.add(translator.toJenaModel(json));
+        JsonNode instances = mapper.readTree(translator.toFormatX(model));
+        assertTrue(instances.isArray());
+        assertEquals(2, instances.size());
+        assertEquals(instance, instances.get(0));
+        assertEquals(instance, instances.get(1));
+    }
+}
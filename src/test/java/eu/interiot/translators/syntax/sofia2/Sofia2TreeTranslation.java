@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Universitat Politècnica de València
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.interiot.translators.syntax.sofia2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.interiot.intermw.bridge.sofia2.Sofia2Utils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.vocabulary.RDF;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Translation of SOFIA2 JSON through a Jackson tree, as done by {@link Sofia2Translator} before its streaming translation.
+ * The streaming translation must give the same models.
+ */
+class Sofia2TreeTranslation {
+    private static final String BASE = Sofia2Translator.sofia2baseURI;
+    private static final Property hasId = ResourceFactory.createProperty(BASE + "hasId");
+    private static final Property hasType = ResourceFactory.createProperty(BASE + "hasType");
+    private static final Property hasValue = ResourceFactory.createProperty(BASE + "hasValue");
+    private static final Property hasName = ResourceFactory.createProperty(BASE + "hasName");
+    private static final Property hasAttribute = ResourceFactory.createProperty(BASE + "hasAttribute");
+    private static final Resource instanceType = ResourceFactory.createResource(BASE + "Instance");
+    private static final Resource attributeType = ResourceFactory.createResource(BASE + "Attribute");
+    private static final Resource arrayType = ResourceFactory.createResource(BASE + "Array");
+    private static final Resource elementType = ResourceFactory.createResource(BASE + "ArrayElement");
+    private static final Property hasElement = ResourceFactory.createProperty(BASE + "hasElement");
+    private static final Property hasNumber = ResourceFactory.createProperty(BASE + "hasNumber");
+    private static final Resource valueType = ResourceFactory.createResource(BASE + "Value");
+    private static final Property hasTimestamp = ResourceFactory.createProperty(BASE + "hasTimestamp");
+    private static final Property hasSessionKey = ResourceFactory.createProperty(BASE + "hasSessionKey");
+    private static final Property hasUser = ResourceFactory.createProperty(BASE + "hasUser");
+    private static final Property hasKp = ResourceFactory.createProperty(BASE + "hasKp");
+    private static final Property hasKpInstance = ResourceFactory.createProperty(BASE + "hasKpInstance");
+    private static final Property hasTimezoneId = ResourceFactory.createProperty(BASE + "hasTimezoneId");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static Model toJenaModel(String json) throws IOException {
+        JsonNode topLevelNode = mapper.readTree(json);
+        Model jenaModel = ModelFactory.createDefaultModel();
+        if (topLevelNode.isObject()) {
+            parseObject(jenaModel.createResource(), topLevelNode, jenaModel);
+        } else if (topLevelNode.isArray()) {
+            Resource arrayResource = jenaModel.createResource();
+            arrayResource.addProperty(RDF.type, arrayType);
+            parseArray(arrayResource, topLevelNode, jenaModel);
+        } else if (topLevelNode.isValueNode()) {
+            Resource valueResource = jenaModel.createResource();
+            valueResource.addProperty(RDF.type, valueType);
+            parseValue(valueResource, topLevelNode, jenaModel);
+        }
+        return jenaModel;
+    }
+
+    private static void parseObject(Resource objectResource, JsonNode objectNode, Model jenaModel) {
+        boolean isInstance = objectNode.has("_id") && objectNode.has("contextData");
+        Iterator<Map.Entry<String, JsonNode>> fields = objectNode.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode node = field.getValue();
+            if (field.getKey().equals("_id")) {
+                objectResource.addProperty(RDF.type, instanceType);
+                String id = node.get("$oid").asText();
+                String ontName = ontologyName(objectNode);
+                objectResource.addProperty(hasId, ontName != null ? Sofia2Utils.urlize(id, ontName) : id);
+            } else if (field.getKey().equals("contextData")) {
+                if (node.has("session_key")) objectResource.addProperty(hasSessionKey, node.get("session_key").asText());
+                else if (node.has("sessionKey")) objectResource.addProperty(hasSessionKey, node.get("sessionKey").asText());
+                objectResource.addProperty(hasUser, node.get("user").asText());
+                objectResource.addProperty(hasKp, node.get("kp").asText());
+                if (node.has("kp_instancia")) objectResource.addProperty(hasKpInstance, node.get("kp_instancia").asText());
+                else if (node.has("kpInstance")) objectResource.addProperty(hasKpInstance, node.get("kpInstance").asText());
+                objectResource.addProperty(hasTimestamp, node.get("timestamp").get("$date").asText());
+                if (node.has("timezoneId")) objectResource.addProperty(hasTimezoneId, node.get("timezoneId").asText());
+            } else if (node.isObject() && isInstance) {
+                // Ontology instance: the key is the class name
+                objectResource.addProperty(hasType, field.getKey());
+                Iterator<Map.Entry<String, JsonNode>> attributes = node.fields();
+                while (attributes.hasNext()) {
+                    Map.Entry<String, JsonNode> attribute = attributes.next();
+                    parseAttribute(objectResource, attribute.getKey(), attribute.getValue(), jenaModel);
+                }
+            } else {
+                parseAttribute(objectResource, field.getKey(), node, jenaModel);
+            }
+        }
+    }
+
+    // Name of the first field whose value is an object, other than _id and contextData
+    private static String ontologyName(JsonNode objectNode) {
+        Iterator<Map.Entry<String, JsonNode>> fields = objectNode.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (field.getValue().isObject() && !field.getKey().equals("contextData") && !field.getKey().equals("_id")) return field.getKey();
+        }
+        return null;
+    }
+
+    private static void parseAttribute(Resource objectResource, String name, JsonNode value, Model jenaModel) {
+        Resource attr = jenaModel.createResource();
+        attr.addProperty(RDF.type, attributeType);
+        objectResource.addProperty(hasAttribute, attr);
+        attr.addProperty(hasName, name);
+        parseValue(attr, value, jenaModel);
+    }
+
+    private static void parseValue(Resource res, JsonNode jsonNode, Model jenaModel) {
+        if (jsonNode.isValueNode()) {
+            if (jsonNode.isInt()) {
+                res.addLiteral(hasValue, Integer.valueOf(jsonNode.asInt())); // Typed as xsd:int
+            } else if (jsonNode.isLong()) {
+                res.addLiteral(hasValue, jsonNode.asLong());
+            } else if (jsonNode.isFloatingPointNumber()) {
+                res.addLiteral(hasValue, (float) jsonNode.asDouble());
+            } else if (jsonNode.isNumber()) {
+                res.addLiteral(hasValue, jsonNode.asDouble());
+            } else if (jsonNode.isBoolean()) {
+                res.addLiteral(hasValue, jsonNode.asBoolean());
+            } else if (jsonNode.isTextual()) {
+                res.addLiteral(hasValue, jsonNode.asText());
+            } else {
+                res.addProperty(hasValue, jsonNode.asText());
+            }
+        } else if (jsonNode.isArray()) {
+            Resource arrayResource = jenaModel.createResource();
+            arrayResource.addProperty(RDF.type, arrayType);
+            res.addProperty(hasValue, arrayResource);
+            parseArray(arrayResource, jsonNode, jenaModel);
+        } else if (jsonNode.isObject()) {
+            Resource objectResource = jenaModel.createResource();
+            res.addProperty(hasValue, objectResource);
+            parseObject(objectResource, jsonNode, jenaModel);
+        }
+    }
+
+    private static void parseArray(Resource arrayResource, JsonNode arrayNode, Model jenaModel) {
+        int counter = 1;
+        for (JsonNode element : arrayNode) {
+            Resource jenaElement = jenaModel.createResource();
+            jenaElement.addProperty(RDF.type, elementType);
+            arrayResource.addProperty(hasElement, jenaElement);
+            jenaElement.addLiteral(hasNumber, Integer.valueOf(counter++));
+            parseValue(jenaElement, element, jenaModel);
+        }
+    }
+}